@@ -0,0 +1,55 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.data.contacts.ContactEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-contact cost of rendering into a reused buffer in each format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ContactRendererBenchmark {
+
+    private static final int POOL = 1024;
+
+    @Param({"TEXT", "JSONL", "TSV"})
+    public String format;
+
+    private List<ContactEntry> contacts;
+    private ContactRenderer renderer;
+    private StringBuilder buffer;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        contacts = SyntheticContacts.build(SyntheticContacts.descriptions(POOL, 4, 2, 1));
+        renderer = new ContactRenderer(ContactRenderer.Format.parse(format), false);
+        buffer = new StringBuilder(4096);
+    }
+
+    @Benchmark
+    public int render() {
+        next = (next + 1) & (POOL - 1);
+        buffer.setLength(0);
+        renderer.render(contacts.get(next), buffer);
+        return buffer.length();
+    }
+}
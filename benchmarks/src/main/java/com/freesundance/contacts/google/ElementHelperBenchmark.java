@@ -0,0 +1,104 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.data.contacts.ContactEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-contact cost of building, merging and printing contacts with
+ * {@link ElementHelper}. Each invocation handles one contact, cycling
+ * through a pool of synthetic contacts so no single shape gets optimized.
+ * Run with -prof gc for allocations per contact.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ElementHelperBenchmark {
+
+    private static final int POOL = 1024;
+
+    @Param({"2", "8"})
+    public int phones;
+
+    @Param({"1", "4"})
+    public int emails;
+
+    private List<List<String>> descriptions;
+    private List<ContactEntry> contacts;
+    private List<ContactEntry> originals;
+    private List<ContactEntry> updates;
+    private boolean[] updated;
+    private ByteArrayOutputStream bytes;
+    private PrintStream out;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        descriptions = SyntheticContacts.descriptions(POOL, phones, emails, 1);
+        contacts = SyntheticContacts.build(descriptions);
+        originals = SyntheticContacts.build(descriptions);
+        updated = new boolean[POOL];
+        // a different seed, so an update really replaces every field
+        updates = SyntheticContacts.build(SyntheticContacts.descriptions(POOL, phones, emails, 2));
+        bytes = new ByteArrayOutputStream(16 * 1024);
+        out = new PrintStream(bytes);
+    }
+
+    private int next() {
+        next = (next + 1) & (POOL - 1);
+        return next;
+    }
+
+    @Benchmark
+    public ContactEntry buildContact() {
+        ContactEntry contact = new ContactEntry();
+        ElementHelper.buildContact(contact, descriptions.get(next()));
+        return contact;
+    }
+
+    /**
+     * Every field changes, each contact flips between two versions.
+     */
+    @Benchmark
+    public List<ElementHelper> updateContact() {
+        int i = next();
+        ContactEntry src = updated[i] ? originals.get(i) : updates.get(i);
+        updated[i] = !updated[i];
+        return ElementHelper.updateContact(contacts.get(i), src);
+    }
+
+    /**
+     * Nothing changes, the cost of finding that out.
+     */
+    @Benchmark
+    public List<ElementHelper> updateUnchanged() {
+        int i = next();
+        return ElementHelper.updateContact(originals.get(i), originals.get(i));
+    }
+
+    @Benchmark
+    public int printContact() {
+        bytes.reset();
+        ElementHelper.printContact(out, contacts.get(next()));
+        out.flush();
+        return bytes.size();
+    }
+}
@@ -0,0 +1,77 @@
+package com.freesundance.contacts.google;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning command line and script text into parameters and parsed
+ * element descriptions, per contact.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParsingBenchmark {
+
+    private static final int POOL = 1024;
+
+    private List<String[]> values;
+    private List<String> scriptLines;
+    private ContactsExampleParameters commandLine;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<List<String>> descriptions = SyntheticContacts.descriptions(POOL, 4, 2, 1);
+        values = new ArrayList<>(POOL);
+        scriptLines = new ArrayList<>(POOL);
+        for (List<String> elements : descriptions) {
+            String[] elementValues = new String[elements.size()];
+            StringBuilder line = new StringBuilder("--action=add");
+            for (int i = 0; i < elements.size(); i++) {
+                String element = elements.get(i);
+                elementValues[i] = element.substring(element.indexOf('=') + 1);
+                line.append(" \"").append(element).append('"');
+            }
+            values.add(elementValues);
+            scriptLines.add(line.toString());
+        }
+        commandLine = new ContactsExampleParameters(new String[]{"--contactfeed"});
+    }
+
+    private int next() {
+        next = (next + 1) & (POOL - 1);
+        return next;
+    }
+
+    /**
+     * Parses every element value of one contact.
+     */
+    @Benchmark
+    public void elementParser(Blackhole blackhole) {
+        for (String value : values.get(next())) {
+            blackhole.consume(new ElementParser(value));
+        }
+    }
+
+    @Benchmark
+    public ContactsExampleParameters scriptLine() {
+        return new ContactsExampleParameters(commandLine, scriptLines.get(next()));
+    }
+}
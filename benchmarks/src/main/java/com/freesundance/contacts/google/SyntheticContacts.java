@@ -0,0 +1,83 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.data.contacts.ContactEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates element descriptions of realistic contacts: a structured name,
+ * several phones, emails and postal addresses, an organization and a few
+ * single valued fields. The same seed always gives the same contacts.
+ */
+final class SyntheticContacts {
+
+    private static final String REL = "http://schemas.google.com/g/2005#";
+    private static final String[] GIVEN = {"John", "Mary", "Ahmed", "Zoë", "Olusegun", "Siobhán", "Kenji", "Ana"};
+    private static final String[] FAMILY = {"Smith", "Jones", "Okafor", "Müller", "O'Brien", "Tanaka", "García"};
+    private static final String[] PHONE_RELS = {"mobile", "home", "work", "other"};
+    private static final String[] CITIES = {"London", "Leeds", "Cardiff", "Edinburgh", "Belfast"};
+
+    private SyntheticContacts() {
+    }
+
+    /**
+     * @param count  the number of contacts.
+     * @param phones phones per contact.
+     * @param emails emails per contact.
+     * @param seed   the random seed.
+     * @return the element descriptions of each contact.
+     */
+    static List<List<String>> descriptions(int count, int phones, int emails, long seed) {
+        Random random = new Random(seed);
+        List<List<String>> contacts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String given = GIVEN[random.nextInt(GIVEN.length)];
+            String family = FAMILY[random.nextInt(FAMILY.length)];
+            List<String> elements = new ArrayList<>();
+            elements.add("--name=" + given + " " + family + ",given:" + given + ",family:" + family
+                    + ",prefix:Dr,suffix:PhD");
+            elements.add("--nickname=" + given.toLowerCase() + i);
+            for (int p = 1; p <= phones; p++) {
+                elements.add("--phone" + p + "=+44 7700 9" + String.format("%05d", random.nextInt(100000))
+                        + ",rel:" + REL + PHONE_RELS[p % PHONE_RELS.length]
+                        + (p == 1 ? ",primary:true" : ""));
+            }
+            for (int e = 1; e <= emails; e++) {
+                elements.add("--email" + e + "=" + given.toLowerCase() + "." + i + "@example" + e + ".com"
+                        + ",rel:" + REL + (e % 2 == 0 ? "work" : "home"));
+            }
+            for (int a = 1; a <= 2; a++) {
+                elements.add("--postal" + a + "=rel:" + REL
+                        + (a == 1 ? "home,primary:true" : "work,primary:false")
+                        + ",street:" + (10 + random.nextInt(200)) + " High Street"
+                        + ",city:" + CITIES[random.nextInt(CITIES.length)]
+                        + ",postcode:SW1A " + random.nextInt(10) + "AA,country:United Kingdom");
+            }
+            elements.add("--organization1=Example Ltd,title:Engineer,primary:true,rel:" + REL + "work");
+            elements.add("--birthday=19" + (50 + random.nextInt(50)) + "-0" + (1 + random.nextInt(9)) + "-1"
+                    + random.nextInt(10));
+            elements.add("--website1=www.example.com/~" + given.toLowerCase() + ",label:personal,primary:false");
+            elements.add("--notes=Met at the conference in " + CITIES[random.nextInt(CITIES.length)]);
+            contacts.add(elements);
+        }
+        return contacts;
+    }
+
+    /**
+     * Builds the contacts described.
+     *
+     * @param descriptions element descriptions as from {@link #descriptions}.
+     * @return the contacts.
+     */
+    static List<ContactEntry> build(List<List<String>> descriptions) {
+        List<ContactEntry> contacts = new ArrayList<>(descriptions.size());
+        for (List<String> elements : descriptions) {
+            ContactEntry contact = new ContactEntry();
+            ElementHelper.buildContact(contact, elements);
+            contacts.add(contact);
+        }
+        return contacts;
+    }
+}
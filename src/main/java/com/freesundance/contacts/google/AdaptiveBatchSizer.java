@@ -0,0 +1,119 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.util.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the number of operations per batch feed from how recent batches
+ * went.
+ * <p/>
+ * The size grows by a step after every full batch answered within the
+ * target latency, shrinks in proportion when a batch is slower than that,
+ * and halves when too many of its operations fail on the server side or
+ * the whole batch fails. It stays between one and the given maximum, which
+ * should not exceed what the server accepts.
+ */
+public final class AdaptiveBatchSizer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    private static final long DEFAULT_TARGET_LATENCY_MILLIS = 5000;
+
+    /**
+     * Share of operations failing with a 5xx above which a batch counts as
+     * overloading the server.
+     */
+    private static final double MAX_SERVER_ERROR_RATE = 0.05;
+
+    private final int maxSize;
+    private final long targetLatencyNanos;
+    private final int step;
+    private int size;
+
+    /**
+     * Starts at a quarter of the maximum with a 5 second target latency.
+     *
+     * @param maxSize the largest batch to send.
+     */
+    public AdaptiveBatchSizer(int maxSize) {
+        this(Math.max(1, maxSize / 4), maxSize, DEFAULT_TARGET_LATENCY_MILLIS);
+    }
+
+    /**
+     * @param initialSize         the size of the first batch.
+     * @param maxSize             the largest batch to send.
+     * @param targetLatencyMillis how long a batch may take before the size
+     *                            is reduced.
+     */
+    public AdaptiveBatchSizer(int initialSize, int maxSize, long targetLatencyMillis) {
+        if (initialSize < 1 || maxSize < initialSize) {
+            throw new IllegalArgumentException("initial size should be between 1 and " + maxSize);
+        }
+        if (targetLatencyMillis < 1) {
+            throw new IllegalArgumentException("target latency should be > 0");
+        }
+        this.size = initialSize;
+        this.maxSize = maxSize;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.step = Math.max(1, maxSize / 10);
+    }
+
+    /**
+     * @return the number of operations the next batch should hold.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Adapts to a batch the server answered.
+     *
+     * @param batchSize    the number of operations sent.
+     * @param nanos        how long the batch took.
+     * @param serverErrors the number of operations that failed with a 5xx.
+     */
+    public synchronized void onResponse(int batchSize, long nanos, int serverErrors) {
+        int before = size;
+        if (serverErrors > batchSize * MAX_SERVER_ERROR_RATE) {
+            size = Math.max(1, Math.min(size, batchSize) / 2);
+        } else if (nanos > targetLatencyNanos) {
+            // scale to what would have met the target, at most halving
+            int scaled = (int) (batchSize * (double) targetLatencyNanos / nanos);
+            size = Math.max(1, Math.min(size, Math.max(scaled, batchSize / 2)));
+        } else if (batchSize >= size) {
+            size = Math.min(maxSize, size + step);
+        }
+        if (size != before) {
+            LOG.debug("batch of [{}] took [{}] ms with [{}] server errors, size [{}] -> [{}]",
+                    batchSize, TimeUnit.NANOSECONDS.toMillis(nanos), serverErrors, before, size);
+        }
+    }
+
+    /**
+     * Adapts to a batch that failed as a whole.
+     *
+     * @param batchSize the number of operations sent.
+     */
+    public synchronized void onFailure(int batchSize) {
+        int before = size;
+        size = Math.max(1, Math.min(size, batchSize) / 2);
+        LOG.info("batch of [{}] failed, size [{}] -> [{}]", batchSize, before, size);
+    }
+
+    /**
+     * Whether a failed batch should be sent again in smaller pieces. Only a
+     * request rejected as too large qualifies: it never reached the
+     * operations. After a timeout or a server error some of them may have
+     * been applied, and sending them again would fail them falsely, an
+     * update with a stale ETag or a delete of what is already gone.
+     *
+     * @param e the failure.
+     * @return {@code true} if splitting may help.
+     */
+    public static boolean isSplittable(Exception e) {
+        return e instanceof ServiceException && ClientMetrics.statusOf((ServiceException) e) == 413;
+    }
+}
@@ -0,0 +1,272 @@
+package com.freesundance.contacts.google;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of a bulk upload.
+ * <p/>
+ * Every operation is recorded as planned before it is sent and as
+ * acknowledged, with the id and ETag Google gave it, once the server
+ * answered. Records are buffered and forced to disk together by
+ * {@link #sync()}, one fsync per batch rather than per record. Each line
+ * ends with a CRC32 of its content so a record torn by a crash is detected;
+ * replay stops there and cuts the file back to the last whole record.
+ * <p/>
+ * After a replay, acknowledged keys are done and planned keys without an
+ * acknowledgement are in doubt: they may or may not have reached Google.
+ */
+public class BulkUploadJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkUploadJournal.class);
+
+    private static final String PLAN = "PLAN";
+    private static final String ACK = "ACK";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * What Google answered for an acknowledged key.
+     */
+    public static class Ack {
+        private final String id;
+        private final String etag;
+
+        Ack(String id, String etag) {
+            this.id = id;
+            this.etag = etag;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Map<String, Ack> acked = new HashMap<>();
+    private final Map<String, Long> inDoubt = new LinkedHashMap<>();
+    private final StringBuilder line = new StringBuilder(256);
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private BulkUploadJournal(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a journal, replaying what an earlier run recorded in it.
+     *
+     * @param file the journal file, created if it does not exist.
+     * @return the journal, positioned to append.
+     */
+    public static BulkUploadJournal open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        BulkUploadJournal journal = new BulkUploadJournal(file, channel);
+        try {
+            journal.replay();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private void replay() throws IOException {
+        long start = System.nanoTime();
+        long valid = 0;
+        int records = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                Channels.newInputStream(channel.position(0)), StandardCharsets.UTF_8), BUFFER_SIZE);
+        for (String record; (record = reader.readLine()) != null; ) {
+            String[] fields = parse(record);
+            if (fields == null) {
+                LOG.warn("journal [{}] has a torn record after [{}] good ones, dropping the rest", file, records);
+                break;
+            }
+            if (PLAN.equals(fields[0]) && fields.length == 3) {
+                if (!acked.containsKey(fields[1])) {
+                    inDoubt.put(fields[1], Long.parseLong(fields[2]));
+                }
+            } else if (ACK.equals(fields[0]) && fields.length == 4) {
+                inDoubt.remove(fields[1]);
+                acked.put(fields[1], new Ack(fields[2], fields[3]));
+            } else {
+                throw new IOException("journal " + file + " has an unknown record: " + record);
+            }
+            valid += record.getBytes(StandardCharsets.UTF_8).length + 1;
+            records++;
+        }
+        // the reader was only a view of the channel, which stays open
+        if (valid < channel.size()) {
+            channel.truncate(valid);
+        }
+        if (valid > channel.size()) {
+            // the last record is whole but lost its line end
+            channel.position(channel.size());
+            channel.write(ByteBuffer.wrap(new byte[]{'\n'}));
+        }
+        channel.position(valid);
+        LOG.info("replayed [{}] journal records in [{}] ms: [{}] acknowledged, [{}] in doubt",
+                records, (System.nanoTime() - start) / 1000000, acked.size(), inDoubt.size());
+    }
+
+    private static String[] parse(String record) {
+        int crcAt = record.lastIndexOf('\t');
+        if (crcAt < 0) {
+            return null;
+        }
+        String content = record.substring(0, crcAt);
+        try {
+            if (Long.parseLong(record.substring(crcAt + 1), 16) != crc(content)) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return content.split("\t", -1);
+    }
+
+    private static long crc(String content) {
+        CRC32 crc = new CRC32();
+        crc.update(content.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * @param key the key of an operation.
+     * @return whether Google acknowledged the operation.
+     */
+    public synchronized boolean isAcked(String key) {
+        return acked.containsKey(key);
+    }
+
+    /**
+     * @param key the key of an operation.
+     * @return what Google answered for it, or {@code null} if it was not
+     *         acknowledged.
+     */
+    public synchronized Ack getAck(String key) {
+        return acked.get(key);
+    }
+
+    /**
+     * @return the number of acknowledged operations.
+     */
+    public synchronized int ackedCount() {
+        return acked.size();
+    }
+
+    /**
+     * @return the keys planned but never acknowledged, with the time they
+     *         were planned at in milliseconds since the epoch.
+     */
+    public synchronized Map<String, Long> inDoubt() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(inDoubt));
+    }
+
+    /**
+     * Records operations about to be sent. Call {@link #sync()} before
+     * sending them.
+     *
+     * @param keys the keys of the operations.
+     */
+    public synchronized void plan(Collection<String> keys) throws IOException {
+        String now = Long.toString(System.currentTimeMillis());
+        for (String key : keys) {
+            checkField(key);
+            write(PLAN, key, now);
+            inDoubt.put(key, Long.parseLong(now));
+        }
+    }
+
+    /**
+     * Records an operation Google acknowledged.
+     *
+     * @param key  the key of the operation.
+     * @param id   the id Google gave the entry.
+     * @param etag the ETag of the entry.
+     */
+    public synchronized void ack(String key, String id, String etag) throws IOException {
+        checkField(key);
+        checkField(id);
+        String tag = etag != null ? etag : "";
+        if (!tag.isEmpty()) {
+            checkField(tag);
+        }
+        write(ACK, key, id, tag);
+        inDoubt.remove(key);
+        acked.put(key, new Ack(id, tag));
+    }
+
+    /**
+     * Writes the buffered records and forces them to disk.
+     */
+    public synchronized void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    private static void checkField(String value) {
+        if (value == null || value.isEmpty() || value.indexOf('\t') >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("illegal journal field: " + value);
+        }
+    }
+
+    private void write(String... fields) throws IOException {
+        line.setLength(0);
+        for (int i = 0; i < fields.length; i++) {
+            line.append(i > 0 ? "\t" : "").append(fields[i]);
+        }
+        long crc = crc(line.toString());
+        line.append('\t').append(Long.toHexString(crc)).append('\n');
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > buffer.remaining()) {
+            flush();
+            if (bytes.length > buffer.capacity()) {
+                buffer = ByteBuffer.allocate(bytes.length);
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.Query;
+import com.google.gdata.client.Service;
+import com.google.gdata.data.DateTime;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.contacts.ContactFeed;
+import com.google.gdata.data.extensions.ExtendedProperty;
+import com.google.gdata.util.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Inserts contacts in batches and records every step in a
+ * {@link BulkUploadJournal}, so a run that fails halfway can be resumed.
+ * <p/>
+ * Each contact has a key chosen by the caller, stable across runs. Keys the
+ * journal holds as acknowledged are skipped. The contacts of a batch are
+ * planned and synced to the journal before the batch is sent and
+ * acknowledged afterwards. Every contact carries its key in an extended
+ * property, so when a run starts with keys in doubt, the contacts updated
+ * since they were planned are scanned for them: the ones found are
+ * acknowledged, the others are sent again.
+ */
+public class BulkUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkUploader.class);
+
+    /**
+     * Name of the extended property holding the upload key of a contact.
+     */
+    public static final String KEY_PROPERTY = "com.freesundance.bulk-upload-key";
+
+    /**
+     * How far before the first in-doubt plan the scan starts, to allow for
+     * the difference between the local and the server clock.
+     */
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final int SCAN_PAGE_SIZE = 500;
+
+    /**
+     * A contact to upload.
+     */
+    public static class Upload {
+        private final String key;
+        private final ContactEntry entry;
+
+        /**
+         * @param key   the key of the contact, the same in every run.
+         * @param entry the contact.
+         */
+        public Upload(String key, ContactEntry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public ContactEntry getEntry() {
+            return entry;
+        }
+    }
+
+    /**
+     * Outcome of an upload run.
+     */
+    public static class Result {
+        private final AtomicInteger uploaded = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger recovered = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        /**
+         * @return contacts inserted by this run.
+         */
+        public int getUploaded() {
+            return uploaded.get();
+        }
+
+        /**
+         * @return contacts an earlier run already inserted.
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * @return in-doubt contacts found on the server.
+         */
+        public int getRecovered() {
+            return recovered.get();
+        }
+
+        /**
+         * @return contacts the server refused.
+         */
+        public int getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return getUploaded() + " uploaded, " + getSkipped() + " already uploaded, "
+                    + getRecovered() + " recovered, " + getFailed() + " failed";
+        }
+    }
+
+    private final Service service;
+    private final URL feedUrl;
+    private final URL batchUrl;
+    private final BulkUploadJournal journal;
+    private final int concurrency;
+    private final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(ContactBatch.MAX_BATCH_SIZE);
+
+    /**
+     * @param service     the service used to send the batches.
+     * @param feedUrl     the contact feed in the full projection, which
+     *                    accepts extended properties.
+     * @param journal     the journal of this upload.
+     * @param concurrency how many batches may be sent at the same time.
+     */
+    public BulkUploader(Service service, URL feedUrl, BulkUploadJournal journal, int concurrency)
+            throws IOException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency should be > 0");
+        }
+        this.service = service;
+        this.feedUrl = feedUrl;
+        this.batchUrl = new URL(feedUrl + "/batch");
+        this.journal = journal;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Uploads every contact the journal does not hold as acknowledged. The
+     * first failed request stops the run once the batches in flight are
+     * done; running again with the same journal and contacts resumes it.
+     *
+     * @param uploads the contacts.
+     * @return what was done.
+     */
+    public Result upload(Iterator<Upload> uploads) throws IOException, ServiceException {
+        Result result = new Result();
+        resolveInDoubt(result);
+
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService senders = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-upload-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Set<String> seen = new HashSet<>();
+            List<Upload> chunk = new ArrayList<>(ContactBatch.MAX_BATCH_SIZE);
+            while (uploads.hasNext() && failure.get() == null) {
+                Upload upload = uploads.next();
+                if (!seen.add(upload.getKey()) || journal.isAcked(upload.getKey())) {
+                    result.skipped.incrementAndGet();
+                    continue;
+                }
+                chunk.add(upload);
+                if (chunk.size() >= ContactBatch.MAX_BATCH_SIZE) {
+                    submit(chunk, result, senders, inFlight, failure);
+                    chunk = new ArrayList<>(ContactBatch.MAX_BATCH_SIZE);
+                }
+            }
+            if (!chunk.isEmpty() && failure.get() == null) {
+                submit(chunk, result, senders, inFlight, failure);
+            }
+            acquire(inFlight, concurrency);
+        } finally {
+            // even when the source failed, no batch may outlive the journal
+            senders.shutdown();
+            awaitTermination(senders);
+        }
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof ServiceException) {
+            throw (ServiceException) e;
+        } else if (e != null) {
+            throw (RuntimeException) e;
+        }
+        LOG.info("bulk upload finished: {}", result);
+        return result;
+    }
+
+    private void submit(List<Upload> chunk, Result result, ExecutorService senders, Semaphore inFlight,
+                        AtomicReference<Exception> failure) throws IOException {
+        acquire(inFlight, 1);
+        try {
+            senders.execute(() -> {
+                try {
+                    send(chunk, result);
+                } catch (IOException | ServiceException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws IOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for batches", e);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService senders) {
+        try {
+            while (!senders.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.info("waiting for the batches in flight");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(List<Upload> chunk, Result result) throws IOException, ServiceException {
+        List<String> keys = new ArrayList<>(chunk.size());
+        for (Upload upload : chunk) {
+            keys.add(upload.getKey());
+        }
+        journal.plan(keys);
+        journal.sync();
+
+        ContactBatch batch = new ContactBatch(service, batchUrl, sizer);
+        Map<String, String> keysByBatchId = new HashMap<>();
+        List<ContactBatch.Outcome> outcomes;
+        try {
+            for (Upload upload : chunk) {
+                tag(upload.getEntry(), upload.getKey());
+                keysByBatchId.put(batch.insert(upload.getEntry()), upload.getKey());
+            }
+            outcomes = batch.flush();
+        } catch (IOException | ServiceException e) {
+            // acknowledge what went through, the rest stays in doubt
+            record(batch.takeOutcomes(), keysByBatchId, result);
+            throw e;
+        }
+        record(outcomes, keysByBatchId, result);
+    }
+
+    private void record(List<ContactBatch.Outcome> outcomes, Map<String, String> keysByBatchId,
+                        Result result) throws IOException {
+        for (ContactBatch.Outcome outcome : outcomes) {
+            String key = keysByBatchId.get(outcome.getBatchId());
+            if (key == null) {
+                // queued by the insert that failed, stays planned
+                result.failed.incrementAndGet();
+            } else if (outcome.isSuccess()) {
+                ContactEntry inserted = outcome.getEntry();
+                journal.ack(key, outcome.getId(), inserted != null ? inserted.getEtag() : null);
+                result.uploaded.incrementAndGet();
+            } else {
+                // not inserted, stays planned and is resolved or sent again by the next run
+                LOG.warn("upload of [{}] failed: {}", key, outcome);
+                result.failed.incrementAndGet();
+            }
+        }
+        journal.sync();
+    }
+
+    /**
+     * Marks a contact with its upload key.
+     *
+     * @param contact the contact.
+     * @param key     the upload key.
+     */
+    static void tag(ContactEntry contact, String key) {
+        for (ExtendedProperty property : contact.getExtendedProperties()) {
+            if (KEY_PROPERTY.equals(property.getName())) {
+                property.setValue(key);
+                return;
+            }
+        }
+        ExtendedProperty property = new ExtendedProperty();
+        property.setName(KEY_PROPERTY);
+        property.setValue(key);
+        contact.addExtendedProperty(property);
+    }
+
+    /**
+     * @param contact a contact.
+     * @return the upload key of the contact, or {@code null} if it has none.
+     */
+    static String keyOf(ContactEntry contact) {
+        for (ExtendedProperty property : contact.getExtendedProperties()) {
+            if (KEY_PROPERTY.equals(property.getName())) {
+                return property.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Acknowledges the in-doubt keys that made it to the server before the
+     * previous run stopped.
+     */
+    private void resolveInDoubt(Result result) throws IOException, ServiceException {
+        Map<String, Long> inDoubt = journal.inDoubt();
+        if (inDoubt.isEmpty()) {
+            return;
+        }
+        long since = Collections.min(inDoubt.values()) - CLOCK_SKEW_MILLIS;
+        LOG.info("[{}] uploads in doubt, scanning contacts updated since [{}]",
+                inDoubt.size(), new DateTime(since));
+        // the property projection returns the thin entry plus just our key
+        String feed = feedUrl.toString();
+        Query query = new Query(new URL(
+                feed.substring(0, feed.lastIndexOf('/') + 1) + "property-" + KEY_PROPERTY));
+        query.setUpdatedMin(new DateTime(since));
+        query.setMaxResults(SCAN_PAGE_SIZE);
+        try (FeedIterator<ContactFeed, ContactEntry> contacts =
+                     FeedIterator.open(service, query, ContactFeed.class)) {
+            while (contacts.hasNext()) {
+                ContactEntry contact = contacts.next();
+                String key = keyOf(contact);
+                if (key == null || !inDoubt.containsKey(key)) {
+                    continue;
+                }
+                if (journal.isAcked(key)) {
+                    LOG.warn("[{}] is on the server more than once, keeping [{}], not [{}]",
+                            key, journal.getAck(key).getId(), contact.getId());
+                    continue;
+                }
+                journal.ack(key, contact.getId(), contact.getEtag());
+                result.recovered.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw e;
+        }
+        journal.sync();
+        LOG.info("[{}] in-doubt uploads found on the server, [{}] will be sent again",
+                result.getRecovered(), inDoubt.size() - result.getRecovered());
+    }
+}
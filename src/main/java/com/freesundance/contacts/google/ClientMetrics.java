@@ -0,0 +1,340 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.util.AuthenticationException;
+import com.google.gdata.util.InvalidEntryException;
+import com.google.gdata.util.NoLongerAvailableException;
+import com.google.gdata.util.NotModifiedException;
+import com.google.gdata.util.PreconditionFailedException;
+import com.google.gdata.util.ResourceNotFoundException;
+import com.google.gdata.util.ServiceException;
+import com.google.gdata.util.ServiceForbiddenException;
+import com.google.gdata.util.ServiceUnavailableException;
+import com.google.gdata.util.VersionConflictException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call counts, errors by HTTP status and latency histograms for each kind of
+ * request made to Google.
+ * <p/>
+ * Recording is lock free. Every operation is published over JMX as
+ * {@code com.freesundance.contacts:type=ClientMetrics,operation=<name>} and
+ * {@link #summary()} gives a table for the end of a CLI run.
+ */
+public final class ClientMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClientMetrics.class);
+
+    private static final String DOMAIN = "com.freesundance.contacts";
+
+    /**
+     * Kinds of request.
+     */
+    public enum Operation {
+        GET_FEED, QUERY, GET_ENTRY, INSERT, UPDATE, DELETE, BATCH, PHOTO
+    }
+
+    /**
+     * What JMX shows for one operation.
+     */
+    public interface OperationMetricsMBean {
+        long getCount();
+
+        long getErrors();
+
+        double getMeanMillis();
+
+        double getMaxMillis();
+
+        double getP50Millis();
+
+        double getP99Millis();
+
+        double getP999Millis();
+
+        Map<Integer, Long> getErrorsByStatus();
+
+        void reset();
+    }
+
+    private static final ClientMetrics DEFAULT = new ClientMetrics(true);
+
+    private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+
+    /**
+     * @param register whether to publish the metrics over JMX.
+     */
+    public ClientMetrics(boolean register) {
+        MBeanServer server = register ? ManagementFactory.getPlatformMBeanServer() : null;
+        for (Operation operation : Operation.values()) {
+            OperationMetrics metrics = new OperationMetrics();
+            operations.put(operation, metrics);
+            if (server != null) {
+                register(server, operation, metrics);
+            }
+        }
+    }
+
+    private static void register(MBeanServer server, Operation operation, OperationMetrics metrics) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=ClientMetrics,operation="
+                    + operation.name().toLowerCase());
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(metrics, OperationMetricsMBean.class), name);
+            }
+        } catch (JMException e) {
+            LOG.warn("could not register metrics for [{}]: {}", operation, e.toString());
+        }
+    }
+
+    /**
+     * @return the metrics shared by the whole process.
+     */
+    public static ClientMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Runs a call and records its latency and outcome.
+     *
+     * @param operation the kind of request.
+     * @param call      the request.
+     * @return what the call returned.
+     */
+    public <T> T time(Operation operation, GDataCall<T> call) throws IOException, ServiceException {
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            record(operation, System.nanoTime() - start, 0);
+            return result;
+        } catch (NotModifiedException e) {
+            // a successful conditional request
+            record(operation, System.nanoTime() - start, 0);
+            throw e;
+        } catch (ServiceException e) {
+            record(operation, System.nanoTime() - start, statusOf(e));
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            record(operation, System.nanoTime() - start, -1);
+            throw e;
+        }
+    }
+
+    /**
+     * Records a request timed by the caller.
+     *
+     * @param operation   the kind of request.
+     * @param nanos       how long it took.
+     * @param errorStatus 0 on success, the HTTP status of a failure, or -1
+     *                    for a failure without one.
+     */
+    public void record(Operation operation, long nanos, int errorStatus) {
+        operations.get(operation).record(nanos, errorStatus);
+    }
+
+    /**
+     * @param operation the kind of request.
+     * @return the metrics of the operation.
+     */
+    public OperationMetricsMBean get(Operation operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * The HTTP status behind a service exception.
+     *
+     * @param e the exception.
+     * @return the status, or -1 if it is not known.
+     */
+    public static int statusOf(ServiceException e) {
+        if (e.getHttpErrorCodeOverride() > 0) {
+            return e.getHttpErrorCodeOverride();
+        }
+        if (e instanceof NotModifiedException) {
+            return 304;
+        } else if (e instanceof InvalidEntryException) {
+            return 400;
+        } else if (e instanceof AuthenticationException) {
+            return 401;
+        } else if (e instanceof ServiceForbiddenException) {
+            return 403;
+        } else if (e instanceof ResourceNotFoundException) {
+            return 404;
+        } else if (e instanceof VersionConflictException) {
+            return 409;
+        } else if (e instanceof NoLongerAvailableException) {
+            return 410;
+        } else if (e instanceof PreconditionFailedException) {
+            return 412;
+        } else if (e instanceof ServiceUnavailableException) {
+            return 503;
+        }
+        return -1;
+    }
+
+    /**
+     * @return a table of every operation that was used.
+     */
+    public String summary() {
+        StringBuilder out = new StringBuilder(512);
+        out.append(String.format("%-10s %8s %7s %9s %9s %9s %9s  %s%n",
+                "operation", "count", "errors", "mean ms", "p50 ms", "p99 ms", "p999 ms", "errors by status"));
+        for (Map.Entry<Operation, OperationMetrics> entry : operations.entrySet()) {
+            OperationMetrics metrics = entry.getValue();
+            if (metrics.getCount() == 0) {
+                continue;
+            }
+            out.append(String.format("%-10s %8d %7d %9.1f %9.1f %9.1f %9.1f  %s%n",
+                    entry.getKey().name().toLowerCase(), metrics.getCount(), metrics.getErrors(),
+                    metrics.getMeanMillis(), metrics.getP50Millis(), metrics.getP99Millis(),
+                    metrics.getP999Millis(), metrics.getErrorsByStatus().isEmpty()
+                            ? "" : metrics.getErrorsByStatus()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Metrics of one operation. Latencies go into log-linear buckets: four
+     * buckets per power of two microseconds, so a percentile is off by at
+     * most a quarter of its value.
+     */
+    static final class OperationMetrics implements OperationMetricsMBean {
+
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final Map<Integer, LongAdder> errorsByStatus = new ConcurrentHashMap<>();
+
+        void record(long nanos, int errorStatus) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulate(micros);
+            buckets.incrementAndGet(bucket(micros));
+            if (errorStatus != 0) {
+                errors.increment();
+                errorsByStatus.computeIfAbsent(errorStatus, status -> new LongAdder()).increment();
+            }
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(micros, 0);
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return magnitude * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return the largest latency that falls into the bucket.
+         */
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int magnitude = bucket / SUB_BUCKETS;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+        }
+
+        private double percentileMillis(double fraction) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+                }
+            }
+            return maxMicros.get() / 1000.0;
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalMicros.sum() / 1000.0 / n;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxMicros.get() / 1000.0;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return percentileMillis(0.5);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return percentileMillis(0.99);
+        }
+
+        @Override
+        public double getP999Millis() {
+            return percentileMillis(0.999);
+        }
+
+        @Override
+        public Map<Integer, Long> getErrorsByStatus() {
+            Map<Integer, Long> result = new TreeMap<>();
+            for (Map.Entry<Integer, LongAdder> entry : errorsByStatus.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().sum());
+            }
+            return result;
+        }
+
+        @Override
+        public void reset() {
+            count.reset();
+            errors.reset();
+            totalMicros.reset();
+            maxMicros.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            errorsByStatus.clear();
+        }
+    }
+}
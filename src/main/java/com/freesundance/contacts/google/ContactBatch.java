@@ -0,0 +1,339 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.Service;
+import com.google.gdata.client.batch.BatchInterruptedException;
+import com.google.gdata.data.batch.BatchOperationType;
+import com.google.gdata.data.batch.BatchStatus;
+import com.google.gdata.data.batch.BatchUtils;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.contacts.ContactFeed;
+import com.google.gdata.util.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups contact inserts, updates and deletes into GData batch feeds.
+ * <p/>
+ * Operations are queued and sent as soon as a full batch is pending;
+ * {@link #flush()} sends the remainder and hands back the per-entry outcome
+ * of every operation queued since the previous flush. What makes a full
+ * batch is adapted to how the server copes, see {@link AdaptiveBatchSizer};
+ * a batch the server rejects as too large is split in halves and sent
+ * again, any other failure of a whole batch is passed on. When the server
+ * interrupts a batch, the operations it answered keep their outcomes and
+ * the ones after the interruption are reported as not processed rather
+ * than sent again, as the server may have applied some of them. The same
+ * goes for every operation left unanswered by a batch that failed; their
+ * outcomes, and those of the operations answered before the failure, are
+ * handed back by {@link #takeOutcomes()} or the next flush.
+ */
+public class ContactBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContactBatch.class);
+
+    /**
+     * The largest batch the Contacts API accepts.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Result of a single batched operation.
+     */
+    public static class Outcome {
+        private final String batchId;
+        private final BatchOperationType operation;
+        private final String id;
+        private final int code;
+        private final String reason;
+        private final ContactEntry entry;
+
+        Outcome(String batchId, BatchOperationType operation, String id, int code, String reason,
+                ContactEntry entry) {
+            this.batchId = batchId;
+            this.operation = operation;
+            this.id = id;
+            this.code = code;
+            this.reason = reason;
+            this.entry = entry;
+        }
+
+        /**
+         * @return the id assigned when the operation was queued.
+         */
+        public String getBatchId() {
+            return batchId;
+        }
+
+        public BatchOperationType getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the id of the contact, for inserts the id it was given.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the HTTP status of the operation, or -1 if the server
+         *         did not process it.
+         */
+        public int getCode() {
+            return code;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return the entry returned by the server for inserts and updates.
+         */
+        public ContactEntry getEntry() {
+            return entry;
+        }
+
+        public boolean isSuccess() {
+            return code >= 200 && code < 300;
+        }
+
+        @Override
+        public String toString() {
+            return batchId + " " + operation + " " + (id != null ? id : "") + " (" + code + ") " + reason;
+        }
+    }
+
+    private final Service service;
+    private final URL batchUrl;
+    private final AdaptiveBatchSizer sizer;
+
+    private final Map<String, ContactEntry> pending = new LinkedHashMap<>();
+    private final List<Outcome> outcomes = new ArrayList<>();
+    private int sequence;
+
+    /**
+     * @param service   the service used to send the batches.
+     * @param batchUrl  the batch endpoint of the contact feed.
+     * @param batchSize the maximum number of operations per batch, the batches
+     *                  sent adapt below it.
+     */
+    public ContactBatch(Service service, URL batchUrl, int batchSize) {
+        this(service, batchUrl, sizer(batchSize));
+    }
+
+    /**
+     * @param service  the service used to send the batches.
+     * @param batchUrl the batch endpoint of the contact feed.
+     * @param sizer    picks the batch size, may be shared by several batches
+     *                 sending to the same endpoint.
+     */
+    public ContactBatch(Service service, URL batchUrl, AdaptiveBatchSizer sizer) {
+        this.service = service;
+        this.batchUrl = batchUrl;
+        this.sizer = sizer;
+    }
+
+    private static AdaptiveBatchSizer sizer(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batch size should be between 1 and " + MAX_BATCH_SIZE);
+        }
+        return new AdaptiveBatchSizer(batchSize);
+    }
+
+    /**
+     * Queues a new contact for insertion.
+     *
+     * @param contact the contact.
+     * @return the batch id of the operation.
+     */
+    public String insert(ContactEntry contact) throws IOException, ServiceException {
+        return queue(contact, BatchOperationType.INSERT);
+    }
+
+    /**
+     * Queues an update. The contact must carry its id and ETag.
+     *
+     * @param contact the updated contact.
+     * @return the batch id of the operation.
+     */
+    public String update(ContactEntry contact) throws IOException, ServiceException {
+        return queue(contact, BatchOperationType.UPDATE);
+    }
+
+    /**
+     * Queues a delete.
+     *
+     * @param id   the id of the contact.
+     * @param etag the ETag the contact must still have, or {@code null} to
+     *             delete whatever version is on the server.
+     * @return the batch id of the operation.
+     */
+    public String delete(String id, String etag) throws IOException, ServiceException {
+        ContactEntry contact = new ContactEntry();
+        contact.setId(id);
+        contact.setEtag(etag != null ? etag : "*");
+        return queue(contact, BatchOperationType.DELETE);
+    }
+
+    /**
+     * @return the number of operations queued but not yet sent.
+     */
+    public int pending() {
+        return pending.size();
+    }
+
+    /**
+     * Sends every queued operation.
+     *
+     * @return the outcome of each operation queued since the last flush.
+     */
+    public List<Outcome> flush() throws IOException, ServiceException {
+        if (!pending.isEmpty()) {
+            send();
+        }
+        return takeOutcomes();
+    }
+
+    /**
+     * Hands back the outcomes collected so far without sending anything,
+     * typically after a failed batch made {@link #flush()} or a queueing
+     * method throw.
+     *
+     * @return the outcome of each operation answered or given up since the
+     *         outcomes were last taken.
+     */
+    public List<Outcome> takeOutcomes() {
+        List<Outcome> result = new ArrayList<>(outcomes);
+        outcomes.clear();
+        return result;
+    }
+
+    private String queue(ContactEntry contact, BatchOperationType operation)
+            throws IOException, ServiceException {
+        String batchId = operation.name().toLowerCase() + "-" + (++sequence);
+        BatchUtils.setBatchId(contact, batchId);
+        BatchUtils.setBatchOperationType(contact, operation);
+        pending.put(batchId, contact);
+        if (pending.size() >= sizer.size()) {
+            send();
+        }
+        return batchId;
+    }
+
+    private void send() throws IOException, ServiceException {
+        List<ContactEntry> responses = new ArrayList<>();
+        List<Outcome> interrupted = new ArrayList<>();
+        try {
+            exchange(new ArrayList<>(pending.values()), responses, interrupted);
+        } catch (IOException | ServiceException | RuntimeException e) {
+            // the server may have applied what it did not answer, nothing is sent again
+            collect(responses, interrupted, "not processed, batch failed: " + e);
+            throw e;
+        }
+        // an interrupted batch leaves the tail of the request unanswered
+        collect(responses, interrupted, "not processed");
+    }
+
+    private void exchange(List<ContactEntry> requests, List<ContactEntry> responses,
+                          List<Outcome> interrupted) throws IOException, ServiceException {
+        ContactFeed requestFeed = new ContactFeed();
+        requestFeed.getEntries().addAll(requests);
+        LOG.debug("sending batch of [{}] operations", requests.size());
+        long start = System.nanoTime();
+        ContactFeed responseFeed;
+        try {
+            responseFeed = RequestScheduler.getDefault().execute(
+                    ClientMetrics.Operation.BATCH, () -> service.batch(batchUrl, requestFeed));
+        } catch (BatchInterruptedException e) {
+            sizer.onFailure(requests.size());
+            interrupt(requests, e, responses, interrupted);
+            return;
+        } catch (IOException | ServiceException e) {
+            sizer.onFailure(requests.size());
+            if (!AdaptiveBatchSizer.isSplittable(e) || requests.size() < 2) {
+                throw e;
+            }
+            int half = requests.size() / 2;
+            LOG.info("batch of [{}] operations failed ({}), sending it in halves", requests.size(), e.toString());
+            exchange(requests.subList(0, half), responses, interrupted);
+            exchange(requests.subList(half, requests.size()), responses, interrupted);
+            return;
+        }
+        int serverErrors = 0;
+        for (ContactEntry entry : responseFeed.getEntries()) {
+            BatchStatus status = BatchUtils.getBatchStatus(entry);
+            if (status != null && status.getCode() >= 500) {
+                serverErrors++;
+            }
+        }
+        sizer.onResponse(requests.size(), System.nanoTime() - start, serverErrors);
+        responses.addAll(responseFeed.getEntries());
+    }
+
+    /**
+     * Keeps the answers of an interrupted batch and marks the operations
+     * left unanswered as not processed.
+     */
+    private static void interrupt(List<ContactEntry> requests, BatchInterruptedException e,
+                                  List<ContactEntry> responses, List<Outcome> interrupted) {
+        String reason = "not processed, batch interrupted";
+        if (e.getBatchInterrupted() != null && e.getBatchInterrupted().getReason() != null) {
+            reason += ": " + e.getBatchInterrupted().getReason();
+        }
+        Set<String> answered = new HashSet<>();
+        if (e.getFeed() != null) {
+            for (Object answer : e.getFeed().getEntries()) {
+                ContactEntry entry = (ContactEntry) answer;
+                answered.add(BatchUtils.getBatchId(entry));
+                responses.add(entry);
+            }
+        }
+        LOG.warn("batch of [{}] operations interrupted after [{}] answers: {}",
+                requests.size(), answered.size(), reason);
+        for (ContactEntry request : requests) {
+            String batchId = BatchUtils.getBatchId(request);
+            if (!answered.contains(batchId)) {
+                interrupted.add(new Outcome(batchId, BatchUtils.getBatchOperationType(request),
+                        request.getId(), -1, reason, null));
+            }
+        }
+    }
+
+    private void collect(List<ContactEntry> responses, List<Outcome> interrupted, String unanswered) {
+        for (ContactEntry entry : responses) {
+            String batchId = BatchUtils.getBatchId(entry);
+            ContactEntry request = pending.remove(batchId);
+            BatchStatus status = BatchUtils.getBatchStatus(entry);
+            BatchOperationType operation = request != null
+                    ? BatchUtils.getBatchOperationType(request) : BatchUtils.getBatchOperationType(entry);
+            String id = entry.getId() != null ? entry.getId() : (request != null ? request.getId() : null);
+            boolean returnsEntry = operation != BatchOperationType.DELETE
+                    && status != null && status.getCode() >= 200 && status.getCode() < 300;
+            outcomes.add(new Outcome(batchId, operation, id,
+                    status != null ? status.getCode() : -1,
+                    status != null ? status.getReason() : "no status",
+                    returnsEntry ? entry : null));
+        }
+        for (Outcome outcome : interrupted) {
+            // the server may have applied it, sending it again could repeat it
+            pending.remove(outcome.getBatchId());
+            outcomes.add(outcome);
+        }
+        for (Map.Entry<String, ContactEntry> missing : pending.entrySet()) {
+            outcomes.add(new Outcome(missing.getKey(),
+                    BatchUtils.getBatchOperationType(missing.getValue()),
+                    missing.getValue().getId(), -1, unanswered, null));
+        }
+        pending.clear();
+    }
+}
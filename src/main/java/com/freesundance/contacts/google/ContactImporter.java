@@ -0,0 +1,132 @@
+package com.freesundance.contacts.google;
+
+import com.freesundance.contacts.vcf.ContactVCardMapper;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.util.ServiceException;
+import ezvcard.VCard;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Creates a Google contact for every vCard that is not in the address book
+ * yet.
+ * <p/>
+ * Cards are read one at a time, mapped to contacts and checked against a
+ * {@link ContactKeyIndex} of the existing contacts, which also takes in
+ * every contact queued so a card repeated in the source is created once.
+ * New contacts go to a {@link BulkUploader}, which inserts them through
+ * batch feeds, several in flight, keyed by their content so an interrupted
+ * import can be run again.
+ */
+public class ContactImporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContactImporter.class);
+
+    private final ContactKeyIndex index;
+    private final ContactVCardMapper mapper;
+    private final BulkUploader uploader;
+
+    private int duplicates;
+    private int unusable;
+
+    /**
+     * @param index    the index of the existing contacts.
+     * @param mapper   maps cards to contacts.
+     * @param uploader inserts the new contacts.
+     */
+    public ContactImporter(ContactKeyIndex index, ContactVCardMapper mapper, BulkUploader uploader) {
+        this.index = index;
+        this.mapper = mapper;
+        this.uploader = uploader;
+    }
+
+    /**
+     * Imports every card.
+     *
+     * @param cards the cards.
+     * @return what the upload did.
+     */
+    public BulkUploader.Result importAll(Iterator<VCard> cards) throws IOException, ServiceException {
+        BulkUploader.Result result = uploader.upload(new NewContacts(cards));
+        LOG.info("import finished: {}, [{}] already in the address book, [{}] unusable",
+                result, duplicates, unusable);
+        return result;
+    }
+
+    /**
+     * @return the cards matching an existing or earlier contact.
+     */
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the cards that could not be turned into a contact.
+     */
+    public int getUnusable() {
+        return unusable;
+    }
+
+    /**
+     * The cards that are new, as uploads. Only the uploading thread reads
+     * it, so the counters need no locking.
+     */
+    private class NewContacts implements Iterator<BulkUploader.Upload> {
+        private final Iterator<VCard> cards;
+        private BulkUploader.Upload next;
+
+        NewContacts(Iterator<VCard> cards) {
+            this.cards = cards;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && cards.hasNext()) {
+                next = toUpload(cards.next());
+            }
+            return next != null;
+        }
+
+        @Override
+        public BulkUploader.Upload next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            BulkUploader.Upload upload = next;
+            next = null;
+            return upload;
+        }
+
+        private BulkUploader.Upload toUpload(VCard card) {
+            ContactEntry contact;
+            try {
+                contact = mapper.toContact(card);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("skipping card [{}]: {}", formattedName(card), e.getMessage());
+                unusable++;
+                return null;
+            }
+            String key = index.contentKey(contact);
+            if (key == null) {
+                LOG.warn("skipping card [{}] without name, phone or email", formattedName(card));
+                unusable++;
+                return null;
+            }
+            if (index.contains(contact)) {
+                LOG.debug("[{}] is already in the address book", formattedName(card));
+                duplicates++;
+                return null;
+            }
+            index.put(contact);
+            return new BulkUploader.Upload(key, contact);
+        }
+    }
+
+    private static String formattedName(VCard card) {
+        return card.getFormattedName() != null ? card.getFormattedName().getValue() : null;
+    }
+}
@@ -0,0 +1,214 @@
+package com.freesundance.contacts.google;
+
+import com.freesundance.contacts.merge.Names;
+import com.freesundance.contacts.merge.PhoneNumbers;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.extensions.Email;
+import com.google.gdata.data.extensions.Name;
+import com.google.gdata.data.extensions.PhoneNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hashed index of what identifies a contact, to tell whether a contact
+ * about to be created is already there.
+ * <p/>
+ * A contact is known by its normalized name combined with each of its
+ * phone numbers in E.164 form and each of its email addresses, and by the
+ * name alone. A new contact is a duplicate if it shares a name and a
+ * number or address with an indexed one, or if it has only a name and that
+ * name is indexed. Only 64-bit FNV-1a hashes of the keys are kept, so the
+ * index stays small however long the names are; two different keys
+ * colliding is unlikely enough to ignore.
+ */
+public class ContactKeyIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContactKeyIndex.class);
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final char NAME = 'n';
+    private static final char PHONE = 'p';
+    private static final char EMAIL = 'e';
+    private static final char CONTENT = 'c';
+    private static final char SEPARATOR = '\u0000';
+
+    private final String countryCode;
+    private final Set<Long> keys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param countryCode the country calling code national numbers belong
+     *                    to, e.g. "44".
+     */
+    public ContactKeyIndex(String countryCode) {
+        if (countryCode == null || !countryCode.matches("[1-9][0-9]{0,2}")) {
+            throw new IllegalArgumentException("illegal country code: " + countryCode);
+        }
+        this.countryCode = countryCode;
+    }
+
+    /**
+     * Indexes every contact of the iterator.
+     *
+     * @param contacts the contacts.
+     * @return this index.
+     */
+    public ContactKeyIndex addAll(Iterator<ContactEntry> contacts) {
+        long start = System.nanoTime();
+        int count = 0;
+        while (contacts.hasNext()) {
+            put(contacts.next());
+            count++;
+        }
+        LOG.debug("indexed [{}] keys of [{}] contacts in [{}] ms", keys.size(), count,
+                (System.nanoTime() - start) / 1000000);
+        return this;
+    }
+
+    /**
+     * Indexes a contact.
+     *
+     * @param contact the contact.
+     */
+    public void put(ContactEntry contact) {
+        String name = name(contact);
+        if (name != null) {
+            keys.add(hash(NAME, name, ""));
+        }
+        for (long key : identifyingKeys(contact, name)) {
+            keys.add(key);
+        }
+    }
+
+    /**
+     * @param contact a contact.
+     * @return whether an indexed contact looks like the same person.
+     */
+    public boolean contains(ContactEntry contact) {
+        String name = name(contact);
+        List<Long> identifying = identifyingKeys(contact, name);
+        if (identifying.isEmpty()) {
+            return name != null && keys.contains(hash(NAME, name, ""));
+        }
+        for (long key : identifying) {
+            if (keys.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A key for the content of a contact that stays the same however its
+     * numbers and addresses are ordered or written.
+     *
+     * @param contact a contact.
+     * @return the key as 16 hex digits, or {@code null} if the contact has
+     *         no name, number or address.
+     */
+    public String contentKey(ContactEntry contact) {
+        String name = name(contact);
+        Set<String> phones = phones(contact);
+        Set<String> emails = emails(contact);
+        if (name == null && phones.isEmpty() && emails.isEmpty()) {
+            return null;
+        }
+        StringBuilder content = new StringBuilder(name != null ? name : "");
+        for (String phone : phones) {
+            content.append(SEPARATOR).append(phone);
+        }
+        content.append(SEPARATOR);
+        for (String email : emails) {
+            content.append(SEPARATOR).append(email);
+        }
+        return String.format("%016x", hash(CONTENT, content, ""));
+    }
+
+    /**
+     * @return the number of distinct keys indexed.
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    private List<Long> identifyingKeys(ContactEntry contact, String name) {
+        String prefix = name != null ? name : "";
+        List<Long> identifying = new ArrayList<>();
+        for (String phone : phones(contact)) {
+            identifying.add(hash(PHONE, prefix, phone));
+        }
+        for (String email : emails(contact)) {
+            identifying.add(hash(EMAIL, prefix, email));
+        }
+        return identifying;
+    }
+
+    private static String name(ContactEntry contact) {
+        StringBuilder raw = new StringBuilder();
+        if (contact.hasName()) {
+            Name name = contact.getName();
+            if (name.hasGivenName()) {
+                raw.append(name.getGivenName().getValue()).append(' ');
+            }
+            if (name.hasFamilyName()) {
+                raw.append(name.getFamilyName().getValue());
+            }
+            if (raw.length() == 0 && name.hasFullName()) {
+                raw.append(name.getFullName().getValue());
+            }
+        }
+        if (raw.length() == 0 && contact.getTitle() != null) {
+            raw.append(contact.getTitle().getPlainText());
+        }
+        return Names.normalize(raw);
+    }
+
+    private Set<String> phones(ContactEntry contact) {
+        Set<String> phones = new TreeSet<>();
+        for (PhoneNumber phoneNumber : contact.getPhoneNumbers()) {
+            // the tel: uri is the server's own canonical form when present
+            String number = PhoneNumbers.toE164(phoneNumber.getUri() != null
+                    ? phoneNumber.getUri() : phoneNumber.getPhoneNumber(), countryCode);
+            if (number != null) {
+                phones.add(number);
+            }
+        }
+        return phones;
+    }
+
+    private static Set<String> emails(ContactEntry contact) {
+        Set<String> emails = new TreeSet<>();
+        for (Email email : contact.getEmailAddresses()) {
+            if (email.getAddress() != null && !email.getAddress().trim().isEmpty()) {
+                emails.add(email.getAddress().trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return emails;
+    }
+
+    private static long hash(char kind, CharSequence first, String second) {
+        long hash = FNV_OFFSET;
+        hash = (hash ^ kind) * FNV_PRIME;
+        hash = update(hash, first);
+        hash = (hash ^ SEPARATOR) * FNV_PRIME;
+        return update(hash, second);
+    }
+
+    private static long update(long hash, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
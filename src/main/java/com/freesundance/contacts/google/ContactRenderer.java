@@ -0,0 +1,321 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.data.Link;
+import com.google.gdata.data.TextContent;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.contacts.GroupMembershipInfo;
+import com.google.gdata.data.extensions.Email;
+import com.google.gdata.data.extensions.Name;
+import com.google.gdata.data.extensions.Organization;
+import com.google.gdata.data.extensions.PhoneNumber;
+import com.google.gdata.data.extensions.StructuredPostalAddress;
+
+/**
+ * Renders contacts into a caller supplied buffer.
+ * <p/>
+ * The buffer is meant to be reused from one contact to the next, so
+ * rendering a feed allocates little beyond the strings the contacts already
+ * hold. A renderer holds no state and may be shared between threads.
+ */
+public class ContactRenderer {
+
+    private static final String PHOTO_REL = "http://schemas.google.com/contacts/2008/rel#photo";
+
+    /**
+     * Output formats.
+     */
+    public enum Format {
+        /**
+         * Human readable, several lines per contact.
+         */
+        TEXT,
+        /**
+         * One JSON object per line.
+         */
+        JSONL,
+        /**
+         * Tab separated key fields, one line per contact.
+         */
+        TSV;
+
+        /**
+         * @param name the format name in any case.
+         * @return the format.
+         */
+        public static Format parse(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("unknown format: " + name);
+        }
+    }
+
+    private static final String TSV_HEADER =
+            "id\tetag\tupdated\tname\tgiven\tfamily\tphones\temails\torganization\tbirthday\n";
+
+    private final Format format;
+    private final boolean details;
+
+    /**
+     * @param format  the output format.
+     * @param details whether the text format includes ids, links and ETags.
+     */
+    public ContactRenderer(Format format, boolean details) {
+        this.format = format;
+        this.details = details;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the line to write before the first contact, or {@code null}
+     *         if the format has none.
+     */
+    public String header() {
+        return format == Format.TSV ? TSV_HEADER : null;
+    }
+
+    /**
+     * Appends a contact to the buffer.
+     *
+     * @param contact the contact.
+     * @param out     the buffer.
+     */
+    public void render(ContactEntry contact, StringBuilder out) {
+        switch (format) {
+            case JSONL:
+                json(contact, out);
+                break;
+            case TSV:
+                tsv(contact, out);
+                break;
+            default:
+                text(contact, out);
+        }
+    }
+
+    private void text(ContactEntry contact, StringBuilder out) {
+        if (details) {
+            out.append("Id: ").append(contact.getId()).append('\n');
+            if (contact.getTitle() != null) {
+                out.append("Contact name: ").append(contact.getTitle().getPlainText()).append('\n');
+            } else {
+                out.append("Contact has no name\n");
+            }
+            if (contact.getUpdated() != null) {
+                out.append("Last updated: ").append(contact.getUpdated().toUiString()).append('\n');
+            }
+            if (contact.hasDeleted()) {
+                out.append("Deleted:\n");
+            }
+        }
+        ElementHelper.printContact(out, contact);
+        if (details) {
+            Link photoLink = contact.getLink(PHOTO_REL, "image/*");
+            if (photoLink != null) {
+                out.append("Photo link: ").append(photoLink.getHref()).append('\n');
+                out.append("  Photo ETag: ").append(photoLink.getEtag() != null
+                        ? photoLink.getEtag() : "(No contact photo uploaded)").append('\n');
+            }
+            if (contact.getSelfLink() != null) {
+                out.append("Self link: ").append(contact.getSelfLink().getHref()).append('\n');
+            }
+            if (contact.getEditLink() != null) {
+                out.append("Edit link: ").append(contact.getEditLink().getHref()).append('\n');
+            }
+            out.append("ETag: ").append(contact.getEtag()).append('\n');
+            out.append("-------------------------------------------\n");
+        }
+    }
+
+    private static void json(ContactEntry contact, StringBuilder out) {
+        out.append('{');
+        jsonField(out, "id", contact.getId(), false);
+        jsonField(out, "etag", contact.getEtag(), true);
+        jsonField(out, "updated", contact.getUpdated() != null ? contact.getUpdated().toString() : null, true);
+        if (contact.hasDeleted()) {
+            out.append(",\"deleted\":true");
+        }
+        if (contact.hasName()) {
+            Name name = contact.getName();
+            out.append(",\"name\":{");
+            jsonField(out, "full", name.hasFullName() ? name.getFullName().getValue() : null, false);
+            jsonField(out, "given", name.hasGivenName() ? name.getGivenName().getValue() : null, true);
+            jsonField(out, "family", name.hasFamilyName() ? name.getFamilyName().getValue() : null, true);
+            out.append('}');
+        }
+        if (contact.hasNickname()) {
+            jsonField(out, "nickname", contact.getNickname().getValue(), true);
+        }
+        if (contact.hasPhoneNumbers()) {
+            out.append(",\"phones\":[");
+            boolean first = true;
+            for (PhoneNumber phone : contact.getPhoneNumbers()) {
+                out.append(first ? "{" : ",{");
+                jsonField(out, "number", phone.getPhoneNumber(), false);
+                jsonField(out, "rel", phone.getRel(), true);
+                jsonField(out, "label", phone.getLabel(), true);
+                if (phone.getPrimary()) {
+                    out.append(",\"primary\":true");
+                }
+                out.append('}');
+                first = false;
+            }
+            out.append(']');
+        }
+        if (contact.hasEmailAddresses()) {
+            out.append(",\"emails\":[");
+            boolean first = true;
+            for (Email email : contact.getEmailAddresses()) {
+                out.append(first ? "{" : ",{");
+                jsonField(out, "address", email.getAddress(), false);
+                jsonField(out, "rel", email.getRel(), true);
+                jsonField(out, "label", email.getLabel(), true);
+                if (email.getPrimary()) {
+                    out.append(",\"primary\":true");
+                }
+                out.append('}');
+                first = false;
+            }
+            out.append(']');
+        }
+        if (contact.hasStructuredPostalAddresses()) {
+            out.append(",\"addresses\":[");
+            boolean first = true;
+            for (StructuredPostalAddress address : contact.getStructuredPostalAddresses()) {
+                out.append(first ? "{" : ",{");
+                jsonField(out, "rel", address.getRel(), false);
+                jsonField(out, "street", address.hasStreet() ? address.getStreet().getValue() : null, true);
+                jsonField(out, "city", address.hasCity() ? address.getCity().getValue() : null, true);
+                jsonField(out, "region", address.hasRegion() ? address.getRegion().getValue() : null, true);
+                jsonField(out, "postcode", address.hasPostcode() ? address.getPostcode().getValue() : null, true);
+                jsonField(out, "country", address.hasCountry() ? address.getCountry().getValue() : null, true);
+                jsonField(out, "formatted",
+                        address.hasFormattedAddress() ? address.getFormattedAddress().getValue() : null, true);
+                out.append('}');
+                first = false;
+            }
+            out.append(']');
+        }
+        if (contact.hasOrganizations()) {
+            out.append(",\"organizations\":[");
+            boolean first = true;
+            for (Organization organization : contact.getOrganizations()) {
+                out.append(first ? "{" : ",{");
+                jsonField(out, "name",
+                        organization.hasOrgName() ? organization.getOrgName().getValue() : null, false);
+                jsonField(out, "title",
+                        organization.hasOrgTitle() ? organization.getOrgTitle().getValue() : null, true);
+                out.append('}');
+                first = false;
+            }
+            out.append(']');
+        }
+        if (contact.hasBirthday()) {
+            jsonField(out, "birthday", contact.getBirthday().getWhen(), true);
+        }
+        if (contact.getContent() instanceof TextContent) {
+            jsonField(out, "notes", contact.getTextContent().getContent().getPlainText(), true);
+        }
+        if (contact.hasGroupMembershipInfos()) {
+            out.append(",\"groups\":[");
+            boolean first = true;
+            for (GroupMembershipInfo group : contact.getGroupMembershipInfos()) {
+                if (!first) {
+                    out.append(',');
+                }
+                jsonString(out, group.getHref());
+                first = false;
+            }
+            out.append(']');
+        }
+        out.append("}\n");
+    }
+
+    private static void jsonField(StringBuilder out, String name, String value, boolean comma) {
+        if (value == null) {
+            if (!comma) {
+                // keeps the object well formed when the first field is absent
+                out.append('"').append(name).append("\":null");
+            }
+            return;
+        }
+        if (comma) {
+            out.append(',');
+        }
+        out.append('"').append(name).append("\":");
+        jsonString(out, value);
+    }
+
+    private static void jsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private static void tsv(ContactEntry contact, StringBuilder out) {
+        Name name = contact.hasName() ? contact.getName() : null;
+        tsvField(out, contact.getId()).append('\t');
+        tsvField(out, contact.getEtag()).append('\t');
+        tsvField(out, contact.getUpdated() != null ? contact.getUpdated().toString() : null).append('\t');
+        tsvField(out, name != null && name.hasFullName() ? name.getFullName().getValue() : null).append('\t');
+        tsvField(out, name != null && name.hasGivenName() ? name.getGivenName().getValue() : null).append('\t');
+        tsvField(out, name != null && name.hasFamilyName() ? name.getFamilyName().getValue() : null).append('\t');
+        boolean first = true;
+        for (PhoneNumber phone : contact.getPhoneNumbers()) {
+            tsvField(first ? out : out.append(';'), phone.getPhoneNumber());
+            first = false;
+        }
+        out.append('\t');
+        first = true;
+        for (Email email : contact.getEmailAddresses()) {
+            tsvField(first ? out : out.append(';'), email.getAddress());
+            first = false;
+        }
+        out.append('\t');
+        Organization organization = contact.hasOrganizations() ? contact.getOrganizations().get(0) : null;
+        tsvField(out, organization != null && organization.hasOrgName()
+                ? organization.getOrgName().getValue() : null).append('\t');
+        tsvField(out, contact.hasBirthday() ? contact.getBirthday().getWhen() : null).append('\n');
+    }
+
+    private static StringBuilder tsvField(StringBuilder out, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                // tabs, line breaks and the list separator would break the columns
+                out.append(c == '\t' || c == '\n' || c == '\r' || c == ';' ? ' ' : c);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,161 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.Query;
+import com.google.gdata.client.Service;
+import com.google.gdata.data.DateTime;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.contacts.ContactFeed;
+import com.google.gdata.util.NoLongerAvailableException;
+import com.google.gdata.util.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Keeps a {@link LocalEntryStore} of contacts in step with the server.
+ * <p/>
+ * A high-watermark (the server time of the last successful sync) is kept
+ * next to the store. Each run asks only for entries updated since then,
+ * including the placeholders of deleted entries, and applies them to the
+ * store. When the server no longer has all the placeholders for that period
+ * it answers 410 and the store is rebuilt from a full listing. The
+ * watermark is dropped before the store is cleared, so a rebuild that
+ * fails halfway is started over by the next run rather than continued
+ * incrementally over a store missing contacts.
+ */
+public class ContactSync {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContactSync.class);
+
+    private static final int PAGE_SIZE = 500;
+
+    /**
+     * Outcome of a sync run.
+     */
+    public static class SyncResult {
+        private boolean full;
+        private int updated;
+        private int deleted;
+
+        public boolean isFull() {
+            return full;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        @Override
+        public String toString() {
+            return (full ? "full" : "incremental") + " sync: " + updated + " updated, " + deleted + " deleted";
+        }
+    }
+
+    private final Service service;
+    private final URL feedUrl;
+    private final LocalEntryStore<ContactEntry> store;
+    private final Path watermarkFile;
+
+    /**
+     * @param service       the service used to query the feed.
+     * @param feedUrl       the contact feed.
+     * @param store         the local contact store to keep in step.
+     * @param watermarkFile where the time of the last sync is kept.
+     */
+    public ContactSync(Service service, URL feedUrl, LocalEntryStore<ContactEntry> store, Path watermarkFile) {
+        this.service = service;
+        this.feedUrl = feedUrl;
+        this.store = store;
+        this.watermarkFile = watermarkFile;
+    }
+
+    /**
+     * Pulls changes since the last run, or everything on the first run.
+     *
+     * @return what was applied to the store.
+     */
+    public SyncResult sync() throws IOException, ServiceException {
+        DateTime watermark = readWatermark();
+        if (watermark == null) {
+            LOG.info("no previous sync, fetching all contacts");
+            return fullSync();
+        }
+        try {
+            return apply(changesSince(watermark), new SyncResult());
+        } catch (NoLongerAvailableException e) {
+            LOG.info("deleted entries since [{}] are no longer available, resyncing", watermark);
+            return fullSync();
+        }
+    }
+
+    private SyncResult fullSync() throws IOException, ServiceException {
+        Files.deleteIfExists(watermarkFile);
+        store.clear();
+        Query query = new Query(feedUrl);
+        query.setMaxResults(PAGE_SIZE);
+        SyncResult result = new SyncResult();
+        result.full = true;
+        return apply(query, result);
+    }
+
+    private Query changesSince(DateTime watermark) {
+        Query query = new Query(feedUrl);
+        query.setUpdatedMin(watermark);
+        query.setMaxResults(PAGE_SIZE);
+        query.setStringCustomParameter("showdeleted", "true");
+        query.setStringCustomParameter("requirealldeleted", "true");
+        return query;
+    }
+
+    private SyncResult apply(Query query, SyncResult result) throws IOException, ServiceException {
+        try (FeedIterator<ContactFeed, ContactEntry> changes =
+                     FeedIterator.open(service, query, ContactFeed.class)) {
+            // the first page's timestamp is server time, so no clock skew creeps in
+            DateTime serverTime = changes.getCurrentFeed().getUpdated();
+            while (changes.hasNext()) {
+                ContactEntry entry = changes.next();
+                if (entry.hasDeleted()) {
+                    store.remove(entry.getId());
+                    result.deleted++;
+                } else {
+                    store.put(entry);
+                    result.updated++;
+                }
+            }
+            if (serverTime != null) {
+                writeWatermark(serverTime);
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw e;
+        }
+        LOG.info("{}", result);
+        return result;
+    }
+
+    private DateTime readWatermark() throws IOException {
+        if (!Files.isRegularFile(watermarkFile)) {
+            return null;
+        }
+        String value = new String(Files.readAllBytes(watermarkFile), StandardCharsets.UTF_8).trim();
+        return value.isEmpty() ? null : DateTime.parseDateTime(value);
+    }
+
+    private void writeWatermark(DateTime watermark) throws IOException {
+        Path tmp = watermarkFile.resolveSibling(watermarkFile.getFileName() + ".tmp");
+        Files.write(tmp, watermark.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, watermarkFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -16,17 +16,16 @@
 
 package com.freesundance.contacts.google;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.freesundance.contacts.vcf.ContactVCardMapper;
+import com.freesundance.contacts.vcf.VcfExporter;
+import com.freesundance.contacts.vcf.VcfSource;
 import com.google.gdata.client.Query;
 import com.google.gdata.client.Service;
 import com.google.gdata.client.contacts.ContactsService;
 import com.google.gdata.client.http.HttpGDataRequest;
 import com.google.gdata.data.DateTime;
-import com.google.gdata.data.Link;
 import com.google.gdata.data.contacts.ContactEntry;
 import com.google.gdata.data.contacts.ContactFeed;
 import com.google.gdata.data.contacts.ContactGroupEntry;
@@ -41,11 +40,15 @@ import org.springframework.stereotype.Component;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
+import java.util.stream.Stream;
 
 /**
  * Example command-line utility that demonstrates how to use the Google Data API
@@ -93,6 +96,25 @@ public class ContactsExample {
     private static final String DEFAULT_FEED = "https://www.google.com/m8/feeds/";
     private static final String DEFAULT_PROJECTION = "thin";
 
+    /**
+     * Number of entries requested per feed page when walking a whole feed.
+     */
+    private static final int PAGE_SIZE = 500;
+
+    private static final String DEFAULT_PHOTO_DIRECTORY = "/tmp";
+    private static final int DEFAULT_PHOTO_CONCURRENCY = 4;
+    private static final int DEFAULT_BATCHES_IN_FLIGHT = 4;
+
+    /**
+     * Number of reads a script may run at the same time
+     */
+    private static final int SCRIPT_READ_CONCURRENCY = 4;
+
+    /**
+     * Country calling code assumed for numbers stored without one
+     */
+    private static final String DEFAULT_COUNTRY_CODE = "44";
+
     /**
      * Base URL for the feed
      */
@@ -110,6 +132,88 @@ public class ContactsExample {
 
     private Resource p12FileResource;
 
+    /**
+     * Loads the service account key once and keeps the access token fresh
+     */
+    private CredentialManager credentialManager;
+
+    /**
+     * Encrypted access token cache, or null to keep the token in memory only
+     */
+    private Path tokenCacheFile;
+
+    /**
+     * Local mirrors of contacts and groups, null unless a cache directory is set
+     */
+    private LocalEntryStore<ContactEntry> contactStore;
+    private LocalEntryStore<ContactGroupEntry> groupStore;
+    private Path cacheDir;
+
+    /**
+     * Id of the entry added most recently, used by scripts
+     */
+    private String lastAddedId;
+
+    /**
+     * Directory contact photos are downloaded to
+     */
+    private Path photoDirectory = Paths.get(DEFAULT_PHOTO_DIRECTORY);
+
+    /**
+     * Maximum number of photos downloaded concurrently
+     */
+    private int photoConcurrency = DEFAULT_PHOTO_CONCURRENCY;
+
+    /**
+     * What contact lists and queries download, null for whole entries of
+     * the configured projection
+     */
+    private FetchProfile fetchProfile;
+
+    /**
+     * Idle connections kept open per host between requests
+     */
+    private int maxConnections = PooledHttpTransport.DEFAULT_MAX_CONNECTIONS;
+
+    /**
+     * Batches an import sends at the same time
+     */
+    private int batchesInFlight = DEFAULT_BATCHES_IN_FLIGHT;
+
+    /**
+     * Contacts by phone number, built on first lookup and kept current
+     * by every add, update and delete
+     */
+    private volatile PhoneNumberIndex phoneIndex;
+    private String countryCode = DEFAULT_COUNTRY_CODE;
+
+    /**
+     * Format contacts are printed in; text goes to the log, the others to
+     * standard output
+     */
+    private ContactRenderer.Format contactFormat = ContactRenderer.Format.TEXT;
+
+    /**
+     * Paces every request made and retries the ones Google throttles
+     */
+    private final RequestScheduler scheduler = RequestScheduler.getDefault();
+
+    /**
+     * Per thread buffer contacts are rendered into, reused between contacts
+     */
+    private static final ThreadLocal<StringBuilder> RENDER_BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+
+    /**
+     * Where the current thread collects the contacts it prints, if it does,
+     * see {@link #processCaptured}
+     */
+    private static final ThreadLocal<StringBuilder> CAPTURE = new ThreadLocal<>();
+
     public Resource getP12FileResource() {
         return p12FileResource;
     }
@@ -118,6 +222,74 @@ public class ContactsExample {
         this.p12FileResource = p12FileResource;
     }
 
+    public Path getTokenCacheFile() {
+        return tokenCacheFile;
+    }
+
+    public void setTokenCacheFile(Path tokenCacheFile) {
+        this.tokenCacheFile = tokenCacheFile;
+    }
+
+    public Path getPhotoDirectory() {
+        return photoDirectory;
+    }
+
+    public void setPhotoDirectory(Path photoDirectory) {
+        this.photoDirectory = photoDirectory;
+    }
+
+    public int getPhotoConcurrency() {
+        return photoConcurrency;
+    }
+
+    public void setPhotoConcurrency(int photoConcurrency) {
+        this.photoConcurrency = photoConcurrency;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getBatchesInFlight() {
+        return batchesInFlight;
+    }
+
+    public void setBatchesInFlight(int batchesInFlight) {
+        this.batchesInFlight = batchesInFlight;
+    }
+
+    public FetchProfile getFetchProfile() {
+        return fetchProfile;
+    }
+
+    public void setFetchProfile(FetchProfile fetchProfile) {
+        this.fetchProfile = fetchProfile;
+    }
+
+    public ContactRenderer.Format getContactFormat() {
+        return contactFormat;
+    }
+
+    public void setContactFormat(ContactRenderer.Format contactFormat) {
+        this.contactFormat = contactFormat;
+    }
+
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    public void setCountryCode(String countryCode) {
+        this.countryCode = countryCode;
+    }
+
+    String getLastAddedId() {
+        return lastAddedId;
+    }
+
     public URL getFeedUrl() {
         return feedUrl;
     }
@@ -166,33 +338,61 @@ public class ContactsExample {
                 + "default/" + projection;
 
         feedUrl = new URL(url);
+        if (parameters.getPhotoDir() != null) {
+            photoDirectory = Paths.get(parameters.getPhotoDir());
+        }
+        if (parameters.getPhotoConcurrency() != null) {
+            photoConcurrency = parameters.getPhotoConcurrency();
+        }
+        if (parameters.getTokenCache() != null) {
+            tokenCacheFile = Paths.get(parameters.getTokenCache());
+        }
+        if (parameters.getFormat() != null) {
+            contactFormat = parameters.getFormat();
+        }
+        if (parameters.getFetchProfile() != null) {
+            fetchProfile = parameters.getFetchProfile();
+        }
+        if (parameters.getMaxConnections() != null) {
+            maxConnections = parameters.getMaxConnections();
+        }
+        if (parameters.getBatchesInFlight() != null) {
+            batchesInFlight = parameters.getBatchesInFlight();
+        }
         service = authenticate();
+        if (parameters.getCacheDir() != null) {
+            cacheDir = Paths.get(parameters.getCacheDir());
+            contactStore = new LocalEntryStore<>(service, cacheDir.resolve("contacts"), ContactEntry.class);
+            groupStore = new LocalEntryStore<>(service, cacheDir.resolve("groups"), ContactGroupEntry.class);
+        }
     }
 
 
+    /**
+     * Returns the authenticated service. The credential manager and the
+     * service are created on first use and reused afterwards, so repeated
+     * operations do not reload the key or refetch the token.
+     */
     private ContactsService authenticate() throws GeneralSecurityException, IOException, ServiceException {
-        JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        if (service != null) {
+            return service;
+        }
         String APPLICATION_NAME = "juppfamily-contacts-1";
-        String SERVICE_ACCOUNT_EMAIL = "account-1@our-contacts-1136.iam.gserviceaccount.com";
-        String accountUser = "nostro@juppfamily.info";
 
-        GoogleCredential credential = new GoogleCredential.Builder()
-                .setTransport(httpTransport)
-                .setJsonFactory(jsonFactory)
-                .setServiceAccountId(SERVICE_ACCOUNT_EMAIL)
-                .setServiceAccountScopes(
-                        Collections.singleton("https://www.google.com/m8/feeds/"))
-                .setServiceAccountPrivateKeyFromP12File(p12FileResource.getFile())
-                .setServiceAccountUser(accountUser)
-                .build();
+        PooledHttpTransport transport = PooledHttpTransport.getShared(maxConnections);
+        if (credentialManager == null) {
+            JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+            String SERVICE_ACCOUNT_EMAIL = "account-1@our-contacts-1136.iam.gserviceaccount.com";
+            String accountUser = "nostro@juppfamily.info";
 
-        if (!credential.refreshToken()) {
-            throw new RuntimeException("Failed OAuth to refresh the token");
+            credentialManager = new CredentialManager(transport.getHttpTransport(), jsonFactory,
+                    SERVICE_ACCOUNT_EMAIL,
+                    Collections.singleton("https://www.google.com/m8/feeds/"),
+                    p12FileResource.getFile(), accountUser, tokenCacheFile);
         }
 
-        ContactsService service = new ContactsService(APPLICATION_NAME);
-        service.setOAuth2Credentials(credential);
+        ContactsService service = transport.configure(new ContactsService(APPLICATION_NAME));
+        service.setOAuth2Credentials(credentialManager.getCredential());
         service.setHeader("GData-Version", "3.0");
 
         return service;
@@ -212,22 +412,37 @@ public class ContactsExample {
                 LOG.debug("No Group found with id: " + parameters.getId());
                 return;
             }
-            group.delete();
+            scheduler.execute(ClientMetrics.Operation.DELETE, () -> {
+                group.delete();
+                return null;
+            });
+            if (groupStore != null) {
+                groupStore.remove(parameters.getId());
+            }
         } else {
-            // get the contact then delete them
-            ContactEntry contact = getContactInternal(parameters.getId());
+            // get the contact then delete them, the id and ETag are all it takes
+            ContactEntry contact = getContactInternal(parameters.getId(), FetchProfile.IDS_ETAGS);
             if (contact == null) {
                 LOG.debug("No contact found with id: " + parameters.getId());
                 return;
             }
-            contact.delete();
+            scheduler.execute(ClientMetrics.Operation.DELETE, () -> {
+                contact.delete();
+                return null;
+            });
+            if (contactStore != null) {
+                contactStore.remove(parameters.getId());
+            }
+            if (phoneIndex != null) {
+                phoneIndex.remove(parameters.getId());
+            }
         }
     }
 
     /**
      * Updates a contact or a group. Presence of any property of a given kind
      * (im, phone, mail, etc.) causes the existing properties of that kind to be
-     * replaced.
+     * replaced. A contact update that changes nothing is not sent.
      *
      * @param parameters parameters storing updated contact values.
      */
@@ -247,13 +462,32 @@ public class ContactsExample {
             if (group.hasExtendedProperties()) {
                 extendedProperties.addAll(group.getExtendedProperties());
             }
-            printGroup(canonicalGroup.update());
+            ContactGroupEntry updatedGroup =
+                    scheduler.execute(ClientMetrics.Operation.UPDATE, canonicalGroup::update);
+            if (groupStore != null) {
+                groupStore.put(parameters.getId(), updatedGroup);
+            }
+            printGroup(updatedGroup);
         } else {
             ContactEntry contact = buildContact(parameters);
             // get the contact then update it
             ContactEntry canonicalContact = getContactInternal(parameters.getId());
-            ElementHelper.updateContact(canonicalContact, contact);
-            printContact(canonicalContact.update());
+            List<ElementHelper> changed = ElementHelper.updateContact(canonicalContact, contact);
+            if (changed.isEmpty()) {
+                LOG.debug("contact [{}] unchanged, skipping update", parameters.getId());
+                printContact(canonicalContact);
+                return;
+            }
+            LOG.debug("contact [{}] changed {}", parameters.getId(), changed);
+            ContactEntry updatedContact =
+                    scheduler.execute(ClientMetrics.Operation.UPDATE, canonicalContact::update);
+            if (contactStore != null) {
+                contactStore.put(parameters.getId(), updatedContact);
+            }
+            if (phoneIndex != null) {
+                phoneIndex.put(updatedContact);
+            }
+            printContact(updatedContact);
         }
     }
 
@@ -265,9 +499,29 @@ public class ContactsExample {
      */
     private ContactEntry getContactInternal(String id)
             throws IOException, ServiceException {
-        return service.getEntry(
-                new URL(id.replace("/base/", "/" + projection + "/")),
-                ContactEntry.class);
+        return getContactInternal(id, null);
+    }
+
+    /**
+     * Gets a contact by it's id, downloading only what a fetch profile
+     * selects. The local store, when there is one, always holds and returns
+     * whole entries.
+     *
+     * @param id      the id of the contact.
+     * @param profile the fetch profile, or null for the whole entry.
+     * @return the ContactEntry or null if not found.
+     */
+    private ContactEntry getContactInternal(String id, FetchProfile profile)
+            throws IOException, ServiceException {
+        URL entryUrl = new URL(id.replace("/base/", "/" + projection + "/"));
+        if (contactStore != null) {
+            return contactStore.get(id, entryUrl);
+        }
+        URL readUrl = profile != null
+                ? profile.entryUrl(new URL(id.replace("/base/", "/" + profile.getProjection() + "/")))
+                : entryUrl;
+        return scheduler.execute(ClientMetrics.Operation.GET_ENTRY,
+                () -> service.getEntry(readUrl, ContactEntry.class));
     }
 
     /**
@@ -278,44 +532,58 @@ public class ContactsExample {
      */
     private ContactGroupEntry getGroupInternal(String id)
             throws IOException, ServiceException {
-        return service.getEntry(
-                new URL(id.replace("/base/", "/" + projection + "/")),
-                ContactGroupEntry.class);
+        URL entryUrl = new URL(id.replace("/base/", "/" + projection + "/"));
+        if (groupStore != null) {
+            return groupStore.get(id, entryUrl);
+        }
+        return scheduler.execute(ClientMetrics.Operation.GET_ENTRY,
+                () -> service.getEntry(entryUrl, ContactGroupEntry.class));
     }
 
     /**
-     * Print the contents of a ContactEntry to System.err.
+     * Prints a contact in the configured format. Text goes to the log and is
+     * skipped without any formatting when info logging is off; ids, links
+     * and ETags are only included at debug level.
      *
      * @param contact The ContactEntry to display.
      */
-    private static void printContact(ContactEntry contact) {
-        LOG.debug("Id: " + contact.getId());
-        if (contact.getTitle() != null) {
-            LOG.debug("Contact name: " + contact.getTitle().getPlainText());
-        } else {
-            LOG.debug("Contact has no name");
-
-        }
-        LOG.debug("Last updated: " + contact.getUpdated().toUiString());
-        if (contact.hasDeleted()) {
-            LOG.debug("Deleted:");
+    private void printContact(ContactEntry contact) {
+        if (contactFormat == ContactRenderer.Format.TEXT && !LOG.isInfoEnabled()) {
+            return;
         }
+        StringBuilder buffer = RENDER_BUFFER.get();
+        buffer.setLength(0);
+        new ContactRenderer(contactFormat, LOG.isDebugEnabled()).render(contact, buffer);
+        print(buffer);
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        PrintStream ps = new PrintStream(baos);
-        ElementHelper.printContact(ps, contact);
-        LOG.info("\n{}", baos.toString());
+    /**
+     * Prints the header of the configured format, if it has one.
+     */
+    private void printContactHeader() {
+        String header = new ContactRenderer(contactFormat, false).header();
+        if (header != null) {
+            print(header);
+        }
+    }
 
-        Link photoLink = contact.getLink(
-                "http://schemas.google.com/contacts/2008/rel#photo", "image/*");
-        LOG.debug("Photo link: " + photoLink.getHref());
-        String photoEtag = photoLink.getEtag();
-        LOG.debug("  Photo ETag: "
-                + (photoEtag != null ? photoEtag : "(No contact photo uploaded)"));
-        LOG.debug("Self link: " + contact.getSelfLink().getHref());
-        LOG.debug("Edit link: " + contact.getEditLink().getHref());
-        LOG.debug("ETag: " + contact.getEtag());
-        LOG.debug("-------------------------------------------\n");
+    /**
+     * Prints contacts rendered in the configured format, or collects them
+     * when the current thread captures its output.
+     *
+     * @param rendered the rendered contacts.
+     */
+    void print(CharSequence rendered) {
+        StringBuilder capture = CAPTURE.get();
+        if (capture != null) {
+            capture.append(rendered);
+        } else if (rendered.length() == 0) {
+            return;
+        } else if (contactFormat == ContactRenderer.Format.TEXT) {
+            LOG.info("\n{}", rendered);
+        } else {
+            System.out.append(rendered);
+        }
     }
 
     /**
@@ -324,17 +592,18 @@ public class ContactsExample {
      * @param groupEntry The GroupEntry to display
      */
     private static void printGroup(ContactGroupEntry groupEntry) {
-        LOG.debug("Id: " + groupEntry.getId());
-        LOG.debug("Group Name: " + groupEntry.getTitle().getPlainText());
-        LOG.debug("Last Updated: " + groupEntry.getUpdated());
+        if (!LOG.isDebugEnabled()) {
+            return;
+        }
+        LOG.debug("Id: [{}]", groupEntry.getId());
+        LOG.debug("Group Name: [{}]", groupEntry.getTitle().getPlainText());
+        LOG.debug("Last Updated: [{}]", groupEntry.getUpdated());
         LOG.debug("Extended Properties:");
         for (ExtendedProperty property : groupEntry.getExtendedProperties()) {
             if (property.getValue() != null) {
-                LOG.debug("  " + property.getName() + "(value) = " +
-                        property.getValue());
+                LOG.debug("  {}(value) = {}", property.getName(), property.getValue());
             } else if (property.getXmlBlob() != null) {
-                LOG.debug("  " + property.getName() + "(xmlBlob) = " +
-                        property.getXmlBlob().getBlob());
+                LOG.debug("  {}(xmlBlob) = {}", property.getName(), property.getXmlBlob().getBlob());
             }
         }
 
@@ -361,7 +630,7 @@ public class ContactsExample {
      * @param example    object controlling the execution
      * @param parameters parameters from command line or script
      */
-    private static void processAction(ContactsExample example,
+    static void processAction(ContactsExample example,
                                       ContactsExampleParameters parameters) throws IOException,
             ServiceException, GeneralSecurityException {
         ContactsExampleParameters.Actions action = parameters.getAction();
@@ -382,11 +651,42 @@ public class ContactsExample {
             case UPDATE:
                 example.updateEntry(parameters);
                 break;
+            case SYNC:
+                example.syncEntries(parameters);
+                break;
+            case EXPORT:
+                example.exportEntries(parameters);
+                break;
+            case IMPORT:
+                example.importEntries(parameters);
+                break;
             default:
                 LOG.debug("No such action");
         }
     }
 
+    /**
+     * Performs an action, collecting the contacts it prints instead of
+     * printing them, so actions running at the same time do not interleave
+     * their output.
+     *
+     * @param example    object controlling the execution
+     * @param parameters parameters from command line or script
+     * @return what the action printed, to be passed to {@link #print}
+     */
+    static StringBuilder processCaptured(ContactsExample example,
+                                         ContactsExampleParameters parameters) throws IOException,
+            ServiceException, GeneralSecurityException {
+        StringBuilder output = new StringBuilder();
+        CAPTURE.set(output);
+        try {
+            processAction(example, parameters);
+        } finally {
+            CAPTURE.remove();
+        }
+        return output;
+    }
+
     /**
      * Query entries (Contacts/Groups) according to parameters specified.
      *
@@ -394,7 +694,11 @@ public class ContactsExample {
      */
     private void queryEntries(ContactsExampleParameters parameters)
             throws IOException, ServiceException {
-        Query myQuery = new Query(feedUrl);
+        boolean partial = fetchProfile != null && !parameters.isGroupFeed();
+        Query myQuery = new Query(partial ? fetchProfile.feedUrl(feedUrl, projection) : feedUrl);
+        if (partial) {
+            fetchProfile.apply(myQuery);
+        }
         if (parameters.getUpdatedMin() != null) {
             DateTime startTime = DateTime.parseDateTime(parameters.getUpdatedMin());
             myQuery.setUpdatedMin(startTime);
@@ -423,15 +727,17 @@ public class ContactsExample {
         }
         try {
             if (parameters.isGroupFeed()) {
-                ContactGroupFeed groupFeed = service.query(
-                        myQuery, ContactGroupFeed.class);
+                ContactGroupFeed groupFeed = scheduler.execute(ClientMetrics.Operation.QUERY,
+                        () -> service.query(myQuery, ContactGroupFeed.class));
                 for (ContactGroupEntry entry : groupFeed.getEntries()) {
                     printGroup(entry);
                 }
                 LOG.debug("Total: " + groupFeed.getEntries().size()
                         + " entries found");
             } else {
-                ContactFeed resultFeed = service.query(myQuery, ContactFeed.class);
+                ContactFeed resultFeed = scheduler.execute(ClientMetrics.Operation.QUERY,
+                        () -> service.query(myQuery, ContactFeed.class));
+                printContactHeader();
                 for (ContactEntry entry : resultFeed.getEntries()) {
                     printContact(entry);
                 }
@@ -445,65 +751,297 @@ public class ContactsExample {
     }
 
 
+    /**
+     * Opens a lazy iterator over every contact in the feed. Pages are fetched
+     * on demand by following the feed's next link, with the next page
+     * prefetched while the current one is consumed.
+     *
+     * @return an iterator which must be closed when the caller is done.
+     */
+    public FeedIterator<ContactFeed, ContactEntry> iterateContacts()
+            throws IOException, ServiceException {
+        return iterateContacts(fetchProfile);
+    }
+
+    /**
+     * Opens a lazy iterator over every contact in the feed, downloading only
+     * what a fetch profile selects, see {@link #iterateContacts()}.
+     *
+     * @param profile the fetch profile, or null for whole entries of the
+     *                configured projection.
+     * @return an iterator which must be closed when the caller is done.
+     */
+    public FeedIterator<ContactFeed, ContactEntry> iterateContacts(FetchProfile profile)
+            throws IOException, ServiceException {
+        Query query = new Query(profile != null ? profile.feedUrl(feedUrl, projection) : feedUrl);
+        query.setMaxResults(PAGE_SIZE);
+        if (profile != null) {
+            profile.apply(query);
+        }
+        return FeedIterator.open(service, query, ContactFeed.class);
+    }
+
+    /**
+     * Streams every contact in the feed, see {@link #iterateContacts()}.
+     *
+     * @return a stream which should be closed when the caller is done.
+     */
+    public Stream<ContactEntry> streamContacts() throws IOException, ServiceException {
+        return iterateContacts().stream();
+    }
+
     public void listContacts() throws IOException, ServiceException, GeneralSecurityException {
 
         service = authenticate();
 
-        ContactFeed resultFeed = service.getFeed(feedUrl, ContactFeed.class);
-        // Print the results
-        LOG.debug(resultFeed.getTitle().getPlainText());
-        for (ContactEntry entry : resultFeed.getEntries()) {
-            printContact(entry);
-            // Since 2.0, the photo link is always there, the presence of an actual
-            // photo is indicated by the presence of an ETag.
-            Link photoLink = entry.getLink(
-                    "http://schemas.google.com/contacts/2008/rel#photo", "image/*");
-            if (photoLink.getEtag() != null) {
-                Service.GDataRequest request =
-                        service.createLinkQueryRequest(photoLink);
-                request.execute();
-                InputStream in = request.getResponseStream();
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                RandomAccessFile file = new RandomAccessFile(
-                        "/tmp/" + entry.getSelfLink().getHref().substring(
-                                entry.getSelfLink().getHref().lastIndexOf('/') + 1), "rw");
-                byte[] buffer = new byte[4096];
-                for (int read = 0; (read = in.read(buffer)) != -1;
-                     out.write(buffer, 0, read)) {
-                }
-                file.write(out.toByteArray());
-                file.close();
-                in.close();
-                request.end();
+        int total = 0;
+        try (FeedIterator<ContactFeed, ContactEntry> contacts = iterateContacts();
+             PhotoDownloader photos = new PhotoDownloader(service, photoDirectory, photoConcurrency)) {
+            // Print the results
+            LOG.debug("{}", contacts.getCurrentFeed().getTitle().getPlainText());
+            printContactHeader();
+            while (contacts.hasNext()) {
+                ContactEntry entry = contacts.next();
+                printContact(entry);
+                photos.submit(entry);
+                total++;
             }
-            LOG.debug("Total: " + resultFeed.getEntries().size()
-                    + " entries found");
         }
+        LOG.debug("Total: " + total + " entries found");
     }
 
     /**
      * List Contacts or Group entries (no parameter are taken into account)
-     * Note! only 25 results will be returned - this is default.
+     * All pages of the feed are walked.
      *
      * @param parameters
      */
     private void listEntries(ContactsExampleParameters parameters)
             throws IOException, ServiceException, GeneralSecurityException {
         if (parameters.isGroupFeed()) {
-            ContactGroupFeed groupFeed =
-                    service.getFeed(feedUrl, ContactGroupFeed.class);
-            LOG.debug(groupFeed.getTitle().getPlainText());
-            for (ContactGroupEntry entry : groupFeed.getEntries()) {
-                printGroup(entry);
+            int total = 0;
+            try (FeedIterator<ContactGroupFeed, ContactGroupEntry> groups =
+                         FeedIterator.open(service, feedUrl, ContactGroupFeed.class)) {
+                LOG.debug(groups.getCurrentFeed().getTitle().getPlainText());
+                while (groups.hasNext()) {
+                    printGroup(groups.next());
+                    total++;
+                }
             }
-            LOG.debug("Total: " + groupFeed.getEntries().size() +
-                    " groups found");
+            LOG.debug("Total: " + total + " groups found");
         } else {
             listContacts();
         }
 
     }
 
+    /**
+     * Finds the contacts holding a phone number without going to the server.
+     * The first call walks the whole feed to build the index.
+     *
+     * @param number the number in any common format.
+     * @return the ids of the contacts holding the number.
+     */
+    public Set<String> findContactsByPhone(String number) throws IOException, ServiceException {
+        return getPhoneIndex().find(number);
+    }
+
+    /**
+     * Returns the phone number index, building it from the feed on first use.
+     *
+     * @return the index.
+     */
+    public PhoneNumberIndex getPhoneIndex() throws IOException, ServiceException {
+        PhoneNumberIndex index = phoneIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = phoneIndex;
+                if (index == null) {
+                    try (FeedIterator<ContactFeed, ContactEntry> contacts =
+                                 iterateContacts(FetchProfile.NAMES_PHONES)) {
+                        index = new PhoneNumberIndex(countryCode).addAll(contacts);
+                    }
+                    phoneIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Creates a batch bound to the batch endpoint of the contact feed.
+     *
+     * @return an empty batch.
+     */
+    public ContactBatch newBatch() throws IOException {
+        return new ContactBatch(service, new URL(feedUrl + "/batch"), ContactBatch.MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Applies add, update and delete operations through batch feeds of up to
+     * {@link ContactBatch#MAX_BATCH_SIZE} entries instead of one request per
+     * contact.
+     *
+     * @param operations parameters of each operation, as for a single call.
+     * @return the outcome of every operation.
+     */
+    public List<ContactBatch.Outcome> batchEntries(List<ContactsExampleParameters> operations)
+            throws IOException, ServiceException {
+        ContactBatch batch = newBatch();
+        List<ContactBatch.Outcome> outcomes;
+        try {
+            for (ContactsExampleParameters parameters : operations) {
+                queueEntry(batch, parameters);
+            }
+            outcomes = batch.flush();
+        } catch (IOException | ServiceException e) {
+            // what went through before the failure is known all the same
+            applyOutcomes(batch.takeOutcomes());
+            throw e;
+        }
+        applyOutcomes(outcomes);
+        return outcomes;
+    }
+
+    /**
+     * Queues a single add, update or delete on the batch. Updates read the
+     * current contact to merge the new values into, and are dropped when
+     * the merge changes nothing.
+     *
+     * @param batch      the batch.
+     * @param parameters parameters of the operation.
+     * @return the batch id of the queued operation, or {@code null} if an
+     *         update was dropped.
+     */
+    String queueEntry(ContactBatch batch, ContactsExampleParameters parameters)
+            throws IOException, ServiceException {
+        if (parameters.isGroupFeed()) {
+            throw new IllegalArgumentException("batch is only supported for the contact feed");
+        }
+        switch (parameters.getAction()) {
+            case ADD:
+                return batch.insert(buildContact(parameters));
+            case UPDATE:
+                ContactEntry canonicalContact = getContactInternal(parameters.getId());
+                List<ElementHelper> changed =
+                        ElementHelper.updateContact(canonicalContact, buildContact(parameters));
+                if (changed.isEmpty()) {
+                    LOG.debug("contact [{}] unchanged, skipping update", parameters.getId());
+                    return null;
+                }
+                LOG.debug("contact [{}] changed {}", parameters.getId(), changed);
+                return batch.update(canonicalContact);
+            case DELETE:
+                ContactEntry cached = contactStore != null ? contactStore.read(parameters.getId()) : null;
+                return batch.delete(parameters.getId(), cached != null ? cached.getEtag() : null);
+            default:
+                throw new IllegalArgumentException("cannot batch action: " + parameters.getAction());
+        }
+    }
+
+    /**
+     * Logs failed operations and keeps the local store in step with the
+     * successful ones.
+     *
+     * @param outcomes the outcomes of a batch.
+     */
+    void applyOutcomes(List<ContactBatch.Outcome> outcomes) throws IOException {
+        for (ContactBatch.Outcome outcome : outcomes) {
+            if (!outcome.isSuccess()) {
+                LOG.warn("batch operation failed: {}", outcome);
+                continue;
+            }
+            if (outcome.getEntry() != null) {
+                if (contactStore != null) {
+                    contactStore.put(outcome.getEntry());
+                }
+                if (phoneIndex != null) {
+                    phoneIndex.put(outcome.getEntry());
+                }
+            } else if (outcome.getId() != null) {
+                if (contactStore != null) {
+                    contactStore.remove(outcome.getId());
+                }
+                if (phoneIndex != null) {
+                    phoneIndex.remove(outcome.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings the local contact store up to date with the server, pulling only
+     * the entries changed since the previous sync.
+     *
+     * @param parameters parameters, the cache directory is required
+     */
+    private void syncEntries(ContactsExampleParameters parameters)
+            throws IOException, ServiceException {
+        if (parameters.isGroupFeed()) {
+            throw new IllegalArgumentException("sync is only supported for the contact feed");
+        }
+        if (contactStore == null) {
+            throw new IllegalArgumentException("sync needs --cache-dir");
+        }
+        new ContactSync(service, feedUrl, contactStore, cacheDir.resolve("sync-watermark")).sync();
+    }
+
+    /**
+     * Exports every contact to a VCF file, writing each card as its page of
+     * the feed arrives. Contacts are always fetched whole, whatever
+     * --fetch-profile says, so no card loses fields.
+     *
+     * @param parameters parameters, the target file is required
+     */
+    private void exportEntries(ContactsExampleParameters parameters)
+            throws IOException, ServiceException {
+        if (parameters.isGroupFeed()) {
+            throw new IllegalArgumentException("export is only supported for the contact feed");
+        }
+        if (parameters.getFile() == null) {
+            throw new IllegalArgumentException("export needs --file");
+        }
+        try (FeedIterator<ContactFeed, ContactEntry> contacts = iterateContacts(FetchProfile.FULL);
+             VcfExporter exporter = new VcfExporter(Paths.get(parameters.getFile()), new ContactVCardMapper())) {
+            exporter.writeAll(contacts);
+        }
+    }
+
+    /**
+     * Creates a contact for every card of a VCF file that is not in the
+     * address book yet, through batch inserts. The existing contacts are
+     * indexed first; progress is kept in a journal so an interrupted import
+     * picks up where it stopped when run again.
+     *
+     * @param parameters parameters, the source file is required
+     */
+    private void importEntries(ContactsExampleParameters parameters)
+            throws IOException, ServiceException {
+        if (parameters.isGroupFeed()) {
+            throw new IllegalArgumentException("import is only supported for the contact feed");
+        }
+        if (parameters.getFile() == null) {
+            throw new IllegalArgumentException("import needs --file");
+        }
+        Path file = Paths.get(parameters.getFile());
+        Path journalFile = parameters.getJournal() != null
+                ? Paths.get(parameters.getJournal()) : Paths.get(parameters.getFile() + ".journal");
+        ContactKeyIndex index;
+        try (FeedIterator<ContactFeed, ContactEntry> contacts =
+                     iterateContacts(FetchProfile.NAMES_PHONES_EMAILS)) {
+            index = new ContactKeyIndex(countryCode).addAll(contacts);
+        }
+        try (BulkUploadJournal journal = BulkUploadJournal.open(journalFile);
+             VcfSource cards = VcfSource.open(file)) {
+            // extended properties, which tag the uploads, need the full projection
+            BulkUploader uploader = new BulkUploader(service,
+                    FetchProfile.FULL.feedUrl(feedUrl, projection), journal, batchesInFlight);
+            new ContactImporter(index, new ContactVCardMapper(), uploader).importAll(cards);
+        }
+        // contacts were added behind the back of the index
+        phoneIndex = null;
+    }
+
     /**
      * Adds contact or group entry according to the parameters specified.
      *
@@ -512,16 +1050,27 @@ public class ContactsExample {
     private void addEntry(ContactsExampleParameters parameters)
             throws IOException, ServiceException {
         if (parameters.isGroupFeed()) {
-            ContactGroupEntry addedGroup =
-                    service.insert(feedUrl, buildGroup(parameters));
+            ContactGroupEntry group = buildGroup(parameters);
+            ContactGroupEntry addedGroup = scheduler.execute(ClientMetrics.Operation.INSERT,
+                    () -> service.insert(feedUrl, group));
+            if (groupStore != null) {
+                groupStore.put(addedGroup);
+            }
             printGroup(addedGroup);
-            //lastAddedId = addedGroup.getId();
+            lastAddedId = addedGroup.getId();
         } else {
-            ContactEntry addedContact =
-                    service.insert(feedUrl, buildContact(parameters));
+            ContactEntry contact = buildContact(parameters);
+            ContactEntry addedContact = scheduler.execute(ClientMetrics.Operation.INSERT,
+                    () -> service.insert(feedUrl, contact));
+            if (contactStore != null) {
+                contactStore.put(addedContact);
+            }
+            if (phoneIndex != null) {
+                phoneIndex.put(addedContact);
+            }
             printContact(addedContact);
             // Store id of the added contact so that scripts can use it in next steps
-            //lastAddedId = addedContact.getId();
+            lastAddedId = addedContact.getId();
         }
     }
 
@@ -569,6 +1118,12 @@ public class ContactsExample {
                         + "    contactsExample [<options>] <authenticationInformation> "
                         + "<--contactfeed|--groupfeed>   --script=<script file>  "
                         + "(default contactFeed) \n"
+                        + "    Each line of the script holds the parameters of one "
+                        + "command. Adjacent add/update/delete lines are sent as batches;\n"
+                        + "    update/delete without --id (or --id=last) apply to the "
+                        + "entry added last.\n"
+                        + "    Quote a parameter to keep its spaces; in element values "
+                        + "escape ',' ':' and '\\' with a backslash.\n"
                         + "  Print usage (this screen):\n"
                         + "   --help\n"
                         + " -----------------------------------------------------------\n\n"
@@ -578,6 +1133,22 @@ public class ContactsExample {
                         + "    --projection=[thin|full|property-KEY] "
                         + "(default thin)\n"
                         + "    --verbose : dumps communication information\n"
+                        + "    --token-cache=<file> : keeps the access token encrypted "
+                        + "on disk between runs\n"
+                        + "    --cache-dir=<directory> : keeps a local copy of fetched "
+                        + "entries and revalidates them by ETag\n"
+                        + "    --photo-dir=<directory> : where contact photos are "
+                        + "downloaded (default /tmp)\n"
+                        + "    --photo-concurrency=<n> : photos downloaded in parallel "
+                        + "(default 4)\n"
+                        + "    --format=[text|jsonl|tsv] : how contacts are printed; "
+                        + "jsonl and tsv go to standard output (default text)\n"
+                        + "    --fetch-profile=[ids+etags|names+phones|"
+                        + "names+phones+emails|full] : what "
+                        + "contact lists and queries download (default whole entries "
+                        + "of the projection)\n"
+                        + "    --max-connections=<n> : idle connections kept open "
+                        + "for reuse (default 16)\n"
                         + "  Authentication Information (obligatory on command line): \n"
                         + "    --username=<username email> --password=<password>\n"
                         + "  Actions: \n"
@@ -598,6 +1169,19 @@ public class ContactsExample {
                         + "the starting index\n"
                         + "             --querygroupid=<groupid> : return results from the "
                         + "group\n"
+                        + "    * sync  updates the local copy in --cache-dir with the "
+                        + "contacts changed since the last sync\n"
+                        + "    * export  writes all contacts to a VCF file\n"
+                        + "        options:\n"
+                        + "             --file=<vcf file>\n"
+                        + "    * import  creates a contact for every card of a VCF file "
+                        + "not in the address book yet\n"
+                        + "        options:\n"
+                        + "             --file=<vcf file>\n"
+                        + "             --journal=<file> : progress of the import, "
+                        + "to resume it (default <vcf file>.journal)\n"
+                        + "             --batches-in-flight=<n> : batches sent at the "
+                        + "same time (default 4)\n"
                         + "    * add  add new contact\n"
                         + "        options:\n"
                         + ElementHelper.getUsageString()
@@ -642,7 +1226,14 @@ public class ContactsExample {
 
         ContactsExample example = new ContactsExample(parameters);
 
-        processAction(example, parameters);
+        if (parameters.getScript() != null) {
+            new ScriptRunner(example, parameters, SCRIPT_READ_CONCURRENCY)
+                    .run(Paths.get(parameters.getScript()));
+        } else {
+            processAction(example, parameters);
+        }
         System.out.flush();
+        LOG.info("request metrics ({}):\n{}", RequestScheduler.getDefault().summary(),
+                ClientMetrics.getDefault().summary());
     }
 }
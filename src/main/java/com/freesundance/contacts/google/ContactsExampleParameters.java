@@ -39,7 +39,10 @@ public class ContactsExampleParameters {
     QUERY,
     ADD,
     DELETE,
-    UPDATE;
+    UPDATE,
+    SYNC,
+    EXPORT,
+    IMPORT;
   }
 
   private static final String DEFAULT_FEED = "https://www.google.com/m8/feeds/";
@@ -85,6 +88,16 @@ public class ContactsExampleParameters {
     VERBOSE("verbose"),
     ID("id"),
     GROUP("querygroupid"),
+    PHOTO_DIR("photo-dir"),
+    PHOTO_CONCURRENCY("photo-concurrency"),
+    TOKEN_CACHE("token-cache"),
+    CACHE_DIR("cache-dir"),
+    FILE("file"),
+    FORMAT("format"),
+    MAX_CONNECTIONS("max-connections"),
+    FETCH_PROFILE("fetch-profile"),
+    JOURNAL("journal"),
+    BATCHES_IN_FLIGHT("batches-in-flight"),
     ;
 
     private final String parameterName;
@@ -109,7 +122,7 @@ public class ContactsExampleParameters {
       String scriptLine) {
     parameterValueMap.putAll(commandLineParams.parameterValueMap);
     elementDesc.addAll(commandLineParams.elementDesc);
-    fillFromArguments(scriptLine.split(" "));
+    fillFromArguments(splitScriptLine(scriptLine));
   }
 
   /**
@@ -122,6 +135,52 @@ public class ContactsExampleParameters {
     fillFromArguments(arguments);
   }
 
+  /**
+   * Splits a script line on spaces, keeping spaces inside double quotes.
+   * The quotes themselves are dropped, \" stands for a literal quote.
+   * Any other backslash escape is kept as is.
+   *
+   * @param scriptLine line read from a file
+   * @return the arguments on the line
+   */
+  static String[] splitScriptLine(String scriptLine) {
+    List<String> arguments = new LinkedList<String>();
+    StringBuilder current = new StringBuilder();
+    boolean quoted = false;
+    boolean pending = false;
+    for (int i = 0; i < scriptLine.length(); i++) {
+      char c = scriptLine.charAt(i);
+      if (c == '\\' && i + 1 < scriptLine.length()) {
+        // other escapes are left for the element parser
+        char next = scriptLine.charAt(++i);
+        if (next != '"') {
+          current.append(c);
+        }
+        current.append(next);
+        pending = true;
+      } else if (c == '"') {
+        quoted = !quoted;
+        pending = true;
+      } else if (c == ' ' && !quoted) {
+        if (pending) {
+          arguments.add(current.toString());
+          current.setLength(0);
+          pending = false;
+        }
+      } else {
+        current.append(c);
+        pending = true;
+      }
+    }
+    if (quoted) {
+      throw new IllegalArgumentException("unterminated quote: " + scriptLine);
+    }
+    if (pending) {
+      arguments.add(current.toString());
+    }
+    return arguments.toArray(new String[arguments.size()]);
+  }
+
   /**
    * Parse arguments.
    * 
@@ -290,6 +349,75 @@ public class ContactsExampleParameters {
     return getParameter(ParameterNames.GROUP);
   }
 
+  String getFile() {
+    return getParameter(ParameterNames.FILE);
+  }
+
+  String getJournal() {
+    return getParameter(ParameterNames.JOURNAL);
+  }
+
+  String getCacheDir() {
+    return getParameter(ParameterNames.CACHE_DIR);
+  }
+
+  ContactRenderer.Format getFormat() {
+    String format = getParameter(ParameterNames.FORMAT);
+    return format != null ? ContactRenderer.Format.parse(format) : null;
+  }
+
+  FetchProfile getFetchProfile() {
+    String profile = getParameter(ParameterNames.FETCH_PROFILE);
+    return profile != null ? FetchProfile.parse(profile) : null;
+  }
+
+  Integer getMaxConnections() {
+    String connectionsString = getParameter(ParameterNames.MAX_CONNECTIONS);
+    if (connectionsString != null) {
+      Integer val = Integer.parseInt(connectionsString);
+      if (val.intValue() < 1) {
+        throw new RuntimeException(
+            ParameterNames.MAX_CONNECTIONS + " should be > 0" );
+      }
+      return val;
+    }
+    return null;
+  }
+
+  Integer getBatchesInFlight() {
+    String batchesString = getParameter(ParameterNames.BATCHES_IN_FLIGHT);
+    if (batchesString != null) {
+      Integer val = Integer.parseInt(batchesString);
+      if (val.intValue() < 1) {
+        throw new RuntimeException(
+            ParameterNames.BATCHES_IN_FLIGHT + " should be > 0" );
+      }
+      return val;
+    }
+    return null;
+  }
+
+  String getTokenCache() {
+    return getParameter(ParameterNames.TOKEN_CACHE);
+  }
+
+  String getPhotoDir() {
+    return getParameter(ParameterNames.PHOTO_DIR);
+  }
+
+  Integer getPhotoConcurrency() {
+    String concurrencyString = getParameter(ParameterNames.PHOTO_CONCURRENCY);
+    if (concurrencyString != null) {
+      Integer val = Integer.parseInt(concurrencyString);
+      if (val.intValue() < 1) {
+        throw new RuntimeException(
+            ParameterNames.PHOTO_CONCURRENCY + " should be > 0" );
+      }
+      return val;
+    }
+    return null;
+  }
+
   List<String> getElementDesc() {
     return elementDesc;
   }
@@ -0,0 +1,224 @@
+package com.freesundance.contacts.google;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the service account credential for the lifetime of the process.
+ * <p/>
+ * The P12 key is loaded once and the access token is kept in memory. When a
+ * token cache file is configured the token is also written there, encrypted
+ * with a key derived from the P12 file, so short-lived CLI runs can reuse a
+ * still valid token instead of doing the OAuth round trip. A background task
+ * refreshes the token shortly before it expires.
+ */
+public class CredentialManager implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialManager.class);
+
+    /**
+     * How long before expiry the token is refreshed.
+     */
+    private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final GoogleCredential credential;
+    private final Path tokenCacheFile;
+    private final SecretKeySpec cacheKey;
+    private final ScheduledExecutorService refresher;
+
+    // Guards scheduledRefresh only. Never held while calling into the
+    // credential, which takes its own lock and calls back into us on refresh.
+    private final Object scheduleLock = new Object();
+    private ScheduledFuture<?> scheduledRefresh;
+
+    /**
+     * @param transport           transport used for the token requests.
+     * @param jsonFactory         JSON factory used for the token requests.
+     * @param serviceAccountEmail the service account id.
+     * @param scopes              the OAuth scopes requested.
+     * @param p12File             the service account private key.
+     * @param accountUser         the user the service account acts as.
+     * @param tokenCacheFile      where the encrypted token is cached, or
+     *                            {@code null} to keep it in memory only.
+     */
+    public CredentialManager(HttpTransport transport, JsonFactory jsonFactory,
+                             String serviceAccountEmail, Collection<String> scopes,
+                             File p12File, String accountUser, Path tokenCacheFile)
+            throws GeneralSecurityException, IOException {
+        this.tokenCacheFile = tokenCacheFile;
+        this.cacheKey = tokenCacheFile == null ? null : deriveKey(p12File);
+        this.credential = new GoogleCredential.Builder()
+                .setTransport(transport)
+                .setJsonFactory(jsonFactory)
+                .setServiceAccountId(serviceAccountEmail)
+                .setServiceAccountScopes(scopes)
+                .setServiceAccountPrivateKeyFromP12File(p12File)
+                .setServiceAccountUser(accountUser)
+                .addRefreshListener(new CredentialRefreshListener() {
+                    @Override
+                    public void onTokenResponse(Credential credential, TokenResponse tokenResponse) {
+                        tokenRefreshed();
+                    }
+
+                    @Override
+                    public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse) {
+                        LOG.warn("token refresh failed [{}]", tokenErrorResponse);
+                    }
+                })
+                .build();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns a credential holding a valid access token. The token comes from
+     * memory or the cache file when possible, otherwise it is fetched.
+     *
+     * @return the credential.
+     */
+    public synchronized GoogleCredential getCredential() throws IOException {
+        if (!isValid()) {
+            if (!loadCachedToken()) {
+                LOG.debug("fetching a new access token");
+                if (!credential.refreshToken()) {
+                    throw new RuntimeException("Failed OAuth to refresh the token");
+                }
+            }
+            scheduleRefresh(credential.getExpirationTimeMilliseconds());
+        }
+        return credential;
+    }
+
+    private boolean isValid() {
+        Long expiry = credential.getExpirationTimeMilliseconds();
+        return credential.getAccessToken() != null && expiry != null
+                && expiry - System.currentTimeMillis() > REFRESH_MARGIN_MILLIS;
+    }
+
+    /**
+     * Called by the credential, under its lock, after every successful refresh
+     * whether triggered by us or by a request that got a 401.
+     */
+    private void tokenRefreshed() {
+        saveCachedToken();
+        scheduleRefresh(credential.getExpirationTimeMilliseconds());
+    }
+
+    private void scheduleRefresh(Long expiry) {
+        if (expiry == null || refresher.isShutdown()) {
+            return;
+        }
+        synchronized (scheduleLock) {
+            if (scheduledRefresh != null) {
+                scheduledRefresh.cancel(false);
+            }
+            long delay = Math.max(0, expiry - System.currentTimeMillis() - REFRESH_MARGIN_MILLIS);
+            LOG.debug("next token refresh in [{}] s", TimeUnit.MILLISECONDS.toSeconds(delay));
+            scheduledRefresh = refresher.schedule(() -> {
+                try {
+                    // the refresh listener saves and reschedules on success
+                    if (!credential.refreshToken()) {
+                        LOG.warn("background token refresh failed, retrying on next use");
+                    }
+                } catch (IOException e) {
+                    LOG.warn("background token refresh failed, retrying on next use", e);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean loadCachedToken() {
+        if (tokenCacheFile == null || !Files.isRegularFile(tokenCacheFile)) {
+            return false;
+        }
+        try {
+            byte[] stored = Files.readAllBytes(tokenCacheFile);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, cacheKey,
+                    new GCMParameterSpec(TAG_BITS, stored, 0, IV_LENGTH));
+            String plain = new String(cipher.doFinal(stored, IV_LENGTH, stored.length - IV_LENGTH),
+                    StandardCharsets.UTF_8);
+            int separator = plain.indexOf('\n');
+            credential.setAccessToken(plain.substring(separator + 1));
+            credential.setExpirationTimeMilliseconds(Long.parseLong(plain.substring(0, separator)));
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            LOG.debug("ignoring unreadable token cache [{}]: {}", tokenCacheFile, e.toString());
+            return false;
+        }
+        if (!isValid()) {
+            LOG.debug("cached token in [{}] has expired", tokenCacheFile);
+            return false;
+        }
+        LOG.debug("reusing cached token from [{}]", tokenCacheFile);
+        return true;
+    }
+
+    private void saveCachedToken() {
+        if (tokenCacheFile == null) {
+            return;
+        }
+        try {
+            String plain = credential.getExpirationTimeMilliseconds() + "\n" + credential.getAccessToken();
+            byte[] iv = new byte[IV_LENGTH];
+            new SecureRandom().nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, cacheKey, new GCMParameterSpec(TAG_BITS, iv));
+            byte[] encrypted = cipher.doFinal(plain.getBytes(StandardCharsets.UTF_8));
+            byte[] stored = Arrays.copyOf(iv, IV_LENGTH + encrypted.length);
+            System.arraycopy(encrypted, 0, stored, IV_LENGTH, encrypted.length);
+
+            Path tmp = tokenCacheFile.resolveSibling(tokenCacheFile.getFileName() + ".tmp");
+            Files.write(tmp, stored);
+            Files.move(tmp, tokenCacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | GeneralSecurityException e) {
+            LOG.warn("could not write token cache [{}]", tokenCacheFile, e);
+        }
+    }
+
+    private static SecretKeySpec deriveKey(File p12File) throws IOException, GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(p12File.toPath()));
+        return new SecretKeySpec(digest, 0, 16, "AES");
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+}
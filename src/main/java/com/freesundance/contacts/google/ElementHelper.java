@@ -16,8 +16,13 @@
 
 package com.freesundance.contacts.google;
 
+import com.google.gdata.data.Content;
 import com.google.gdata.data.DateTime;
+import com.google.gdata.data.Extension;
+import com.google.gdata.data.ExtensionProfile;
 import com.google.gdata.data.PlainTextConstruct;
+import com.google.gdata.data.TextConstruct;
+import com.google.gdata.data.TextContent;
 import com.google.gdata.data.contacts.BillingInformation;
 import com.google.gdata.data.contacts.Birthday;
 import com.google.gdata.data.contacts.CalendarLink;
@@ -72,15 +77,18 @@ import com.google.gdata.data.extensions.StructuredPostalAddress;
 import com.google.gdata.data.extensions.When;
 import com.google.gdata.data.extensions.Where;
 import com.google.gdata.util.XmlBlob;
+import com.google.gdata.util.common.xml.XmlWriter;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * Helper class to parse, update and display a contact.
@@ -99,10 +107,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setBillingInformation(billingInformation);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
        if (contact.hasBillingInformation()) {
-         out.println("billing information: "
-             + contact.getBillingInformation().getValue());
+         out.append("billing information: ")
+             .append(contact.getBillingInformation().getValue()).append('\n');
        }
     }
 
@@ -112,6 +120,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasBillingInformation()
+          && differs(dest.getBillingInformation(), src.getBillingInformation());
+    }
+
     public String getUsage() {
       return "<billing_information>";
     }
@@ -124,9 +137,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setBirthday(birthday);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasBirthday()) {
-        out.println("birthday: " + contact.getBirthday().getWhen());
+        out.append("birthday: ").append(contact.getBirthday().getWhen())
+            .append('\n');
       }
     }
 
@@ -136,6 +150,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasBirthday()
+          && differs(dest.getBirthday(), src.getBirthday());
+    }
+
     public String getUsage() {
       return "YYYY-MM-DD|--MM-DD";
     }
@@ -159,20 +178,20 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addCalendarLink(calendarLink);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasCalendarLinks()) {
-        out.println("calendar links:");
+        out.append("calendar links:\n");
         for (CalendarLink calendarLink : contact.getCalendarLinks()) {
-          out.print("  " + calendarLink.getHref());
+          out.append("  ").append(calendarLink.getHref());
           if (calendarLink.hasRel()) {
-            out.print(" rel:" + calendarLink.getRel());
+            out.append(" rel:").append(calendarLink.getRel());
           } else if (calendarLink.hasLabel()) {
-            out.print(" label:" + calendarLink.getLabel());
+            out.append(" label:").append(calendarLink.getLabel());
           }
           if (calendarLink.hasPrimary() && calendarLink.getPrimary()) {
-            out.print(" (primary)");
+            out.append(" (primary)");
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -185,6 +204,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasCalendarLinks()
+          && differs(dest.getCalendarLinks(), src.getCalendarLinks());
+    }
+
     public String getUsage() {
       return "<href>"
           + "[,rel:<rel>]"
@@ -200,10 +224,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setDirectoryServer(directoryServer);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasDirectoryServer()) {
-        out.println("directory server: "
-            + contact.getDirectoryServer().getValue());
+        out.append("directory server: ")
+            .append(contact.getDirectoryServer().getValue()).append('\n');
       }
     }
 
@@ -213,6 +237,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasDirectoryServer()
+          && differs(dest.getDirectoryServer(), src.getDirectoryServer());
+    }
+
     public String getUsage() {
       return "<directory_server>";
     }
@@ -234,21 +263,21 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addEmailAddress(email);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasEmailAddresses()) {
-        out.println("email addresses:");
+        out.append("email addresses:\n");
         for (Email email : contact.getEmailAddresses()) {
-          out.print("  " + email.getAddress());
+          out.append("  ").append(email.getAddress());
           if (email.getRel() != null) {
-            out.print(" rel:" + email.getRel());
+            out.append(" rel:").append(email.getRel());
           }
           if (email.getLabel() != null) {
-            out.print(" label:" + email.getLabel());
+            out.append(" label:").append(email.getLabel());
           }
           if (email.getPrimary()) {
-            out.print(" (primary)");
+            out.append(" (primary)");
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -261,6 +290,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasEmailAddresses()
+          && differs(dest.getEmailAddresses(), src.getEmailAddresses());
+    }
+
     public String getUsage() {
       return "<email>"
           + "[,rel:<rel>]"
@@ -284,18 +318,18 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addEvent(event);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasEvents()) {
-        out.println("events:");
+        out.append("events:\n");
         for (Event event : contact.getEvents()) {
-          out.print("  " + event.getWhen().getStartTime().toString());
+          out.append("  ").append(event.getWhen().getStartTime().toString());
           if (event.hasRel()) {
-            out.print(" rel:" + event.getRel());
+            out.append(" rel:").append(event.getRel());
           }
           if (event.hasLabel()) {
-            out.print(" label:" + event.getLabel());
+            out.append(" label:").append(event.getLabel());
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -308,6 +342,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasEvents()
+          && differs(dest.getEvents(), src.getEvents());
+    }
+
     public String getUsage() {
       return "<YYYY-MM-DD>"
         + "[,rel:<rel>]"
@@ -380,17 +419,17 @@ public enum ElementHelper implements ElementHelperInterface {
       group.addExtendedProperty(extendedProperty);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasExtendedProperties()) {
-        out.println("extended properties:");
+        out.append("extended properties:\n");
         for (ExtendedProperty property : contact.getExtendedProperties()) {
-          out.print("  " + property.getName());
+          out.append("  ").append(property.getName());
           if (property.hasValue()) {
-            out.print(" value:" + property.getValue());
+            out.append(" value:").append(property.getValue());
           } else {
-            out.print(" xmlBlob:" + property.getXmlBlob());
+            out.append(" xmlBlob:").append(property.getXmlBlob());
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -404,6 +443,11 @@ public enum ElementHelper implements ElementHelperInterface {
 
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasExtendedProperties()
+          && differs(dest.getExtendedProperties(), src.getExtendedProperties());
+    }
+
     public String getUsage() {
       return "<name>,text:<value>|file:<XmlFilePath>";
     }
@@ -422,18 +466,18 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addExternalId(externalId);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasExternalIds()) {
-        out.println("external ids:");
+        out.append("external ids:\n");
         for (ExternalId externalId : contact.getExternalIds()) {
-          out.print("  " + externalId.getValue());
+          out.append("  ").append(externalId.getValue());
           if (externalId.hasRel()) {
-            out.print(" rel:" + externalId.getRel());
+            out.append(" rel:").append(externalId.getRel());
           }
           if (externalId.hasLabel()) {
-            out.print(" label:" + externalId.getLabel());
+            out.append(" label:").append(externalId.getLabel());
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -446,6 +490,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasExternalIds()
+          && differs(dest.getExternalIds(), src.getExternalIds());
+    }
+
     public String getUsage() {
       return "<external_id>,rel:<rel>|label:<label>";
     }
@@ -468,10 +517,11 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setGender(gender);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasGender()) {
-        out.println("gender: "
-            + contact.getGender().getValue().toString().toLowerCase());
+        out.append("gender: ")
+            .append(contact.getGender().getValue().toString().toLowerCase())
+            .append('\n');
       }
     }
 
@@ -481,6 +531,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasGender()
+          && differs(dest.getGender(), src.getGender());
+    }
+
     public String getUsage() {
       return "male|female";
     }
@@ -493,15 +548,15 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addGroupMembershipInfo(groupMembershipInfo);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasGroupMembershipInfos()) {
-        out.println("group membership info:");
+        out.append("group membership info:\n");
         for (GroupMembershipInfo group : contact.getGroupMembershipInfos()) {
-          out.print("  " + group.getHref());
+          out.append("  ").append(group.getHref());
           if (group.getDeleted()) {
-            out.print(" (deleted)");
+            out.append(" (deleted)");
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -515,6 +570,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasGroupMembershipInfos()
+          && differs(dest.getGroupMembershipInfos(), src.getGroupMembershipInfos());
+    }
+
     public String getUsage() {
       return "<url>";
     }
@@ -527,11 +587,11 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addHobby(hobby);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasHobbies()) {
-        out.println("hobbies:");
+        out.append("hobbies:\n");
         for (Hobby hobby : contact.getHobbies()) {
-          out.println("  " + hobby.getValue());
+          out.append("  ").append(hobby.getValue()).append('\n');
         }
       }
     }
@@ -544,6 +604,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasHobbies()
+          && differs(dest.getHobbies(), src.getHobbies());
+    }
+
     public String getUsage() {
       return "<hobby>";
     }
@@ -568,23 +633,23 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addImAddress(im);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasImAddresses()) {
-        out.println("im addresses:");
+        out.append("im addresses:\n");
         for (Im im : contact.getImAddresses()) {
-          out.print("  " + im.getAddress());
+          out.append("  ").append(im.getAddress());
           if (im.hasRel()) {
-            out.print(" rel:" + im.getRel());
+            out.append(" rel:").append(im.getRel());
           } else if (im.hasLabel()) {
-            out.print(" label:" + im.getLabel());
+            out.append(" label:").append(im.getLabel());
           }
           if (im.hasProtocol()) {
-            out.print(" protocol:" + im.getProtocol());
+            out.append(" protocol:").append(im.getProtocol());
           }
           if (im.getPrimary()) {
-            out.print(" (primary)");
+            out.append(" (primary)");
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -597,6 +662,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasImAddresses()
+          && differs(dest.getImAddresses(), src.getImAddresses());
+    }
+
     public String getUsage() {
       return "<im>"
           + "[,rel:<rel>]"
@@ -613,9 +683,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setInitials(initials);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasInitials()) {
-        out.println("initials: " + contact.getInitials().getValue());
+        out.append("initials: ").append(contact.getInitials().getValue())
+            .append('\n');
       }
     }
 
@@ -625,6 +696,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasInitials()
+          && differs(dest.getInitials(), src.getInitials());
+    }
+
     public String getUsage() {
       return "<initials>";
     }
@@ -640,15 +716,15 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addJot(jot);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasJots()) {
-        out.println("jots:");
+        out.append("jots:\n");
         for (Jot jot : contact.getJots()) {
-          out.print("  " + jot.getValue());
+          out.append("  ").append(jot.getValue());
           if (jot.hasRel()) {
-            out.print(" rel:" + jot.getRel().toString().toLowerCase());
+            out.append(" rel:").append(jot.getRel().toString().toLowerCase());
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -661,6 +737,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasJots()
+          && differs(dest.getJots(), src.getJots());
+    }
+
     public String getUsage() {
       return "<jot>"
           + "[,rel:home|work|other|keywords|user]";
@@ -674,11 +755,11 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addLanguage(language);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasLanguages()) {
-        out.println("languages:");
+        out.append("languages:\n");
         for (Language language : contact.getLanguages()) {
-          out.println("  " + language.getLabel());
+          out.append("  ").append(language.getLabel()).append('\n');
         }
       }
     }
@@ -691,6 +772,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasLanguages()
+          && differs(dest.getLanguages(), src.getLanguages());
+    }
+
     public String getUsage() {
       return "<language>";
     }
@@ -701,9 +787,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setWhere(new Where(null, null, parser.get(PropertyName.VALUE)));
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasWhere()) {
-        out.println("where: " + contact.getWhere().getValueString());
+        out.append("where: ").append(contact.getWhere().getValueString())
+            .append('\n');
       }
     }
 
@@ -713,6 +800,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasWhere()
+          && differs(dest.getWhere(), src.getWhere());
+    }
+
     public String getUsage() {
       return "<where>";
     }
@@ -726,9 +818,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setMaidenName(maidenName);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasMaidenName()) {
-        out.println("maiden name: " + contact.getMaidenName().getValue());
+        out.append("maiden name: ").append(contact.getMaidenName().getValue())
+            .append('\n');
       }
     }
 
@@ -738,6 +831,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasMaidenName()
+          && differs(dest.getMaidenName(), src.getMaidenName());
+    }
+
     public String getUsage() {
       return "<maiden_name>";
     }
@@ -750,9 +848,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setMileage(mileage);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasMileage()) {
-        out.println("mileage: " + contact.getMileage().getValue());
+        out.append("mileage: ").append(contact.getMileage().getValue())
+            .append('\n');
       }
     }
 
@@ -762,6 +861,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasMileage()
+          && differs(dest.getMileage(), src.getMileage());
+    }
+
     public String getUsage() {
       return "<mileage>";
     }
@@ -795,29 +899,30 @@ public enum ElementHelper implements ElementHelperInterface {
       group.setTitle(new PlainTextConstruct(parser.get(PropertyName.VALUE)));
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasName()) {
-        out.println("structured name: ");
+        out.append("structured name: \n");
         Name name = contact.getName();
         if (name.hasFullName()) {
-          out.print(" full name: " + name.getFullName().getValue());
+          out.append(" full name: ").append(name.getFullName().getValue());
         }
         if (name.hasGivenName()) {
-          out.print(" given name: " + name.getGivenName().getValue());
+          out.append(" given name: ").append(name.getGivenName().getValue());
         }
         if (name.hasFamilyName()) {
-          out.print(" family name: " + name.getFamilyName().getValue());
+          out.append(" family name: ").append(name.getFamilyName().getValue());
         }
         if (name.hasAdditionalName()) {
-          out.print(" additional name: " + name.getAdditionalName().getValue());
+          out.append(" additional name: ")
+              .append(name.getAdditionalName().getValue());
         }
         if (name.hasNamePrefix()) {
-          out.print(" prefix: " + name.getNamePrefix().getValue());
+          out.append(" prefix: ").append(name.getNamePrefix().getValue());
         }
         if (name.hasNameSuffix()) {
-          out.print(" suffix: " + name.getNameSuffix().getValue());
+          out.append(" suffix: ").append(name.getNameSuffix().getValue());
         }
-        out.println();
+        out.append('\n');
       }
     }
 
@@ -827,6 +932,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasName()
+          && differs(dest.getName(), src.getName());
+    }
+
     public String getUsage() {
       return "<name>"
           + "[,given:<givenName]"
@@ -844,9 +954,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setNickname(nickname);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasNickname()) {
-        out.println("nickname: " + contact.getNickname().getValue());
+        out.append("nickname: ").append(contact.getNickname().getValue())
+            .append('\n');
       }
     }
 
@@ -856,6 +967,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasNickname()
+          && differs(dest.getNickname(), src.getNickname());
+    }
+
     public String getUsage() {
       return "<nickname>";
     }
@@ -867,10 +983,11 @@ public enum ElementHelper implements ElementHelperInterface {
           new PlainTextConstruct(parser.get(PropertyName.VALUE)));
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.getContent() != null) {
-        out.println("notes: "
-            + contact.getTextContent().getContent().getPlainText());
+        out.append("notes: ")
+            .append(contact.getTextContent().getContent().getPlainText())
+            .append('\n');
       }
     }
 
@@ -880,6 +997,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.getContent() != null
+          && differs(dest.getContent(), src.getContent());
+    }
+
     public String getUsage() {
       return "<notes>";
     }
@@ -893,9 +1015,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setOccupation(occupation);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasOccupation()) {
-        out.println("occupation: " + contact.getOccupation().getValue());
+        out.append("occupation: ").append(contact.getOccupation().getValue())
+            .append('\n');
       }
     }
 
@@ -905,6 +1028,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasOccupation()
+          && differs(dest.getOccupation(), src.getOccupation());
+    }
+
     public String getUsage() {
       return "<occupation>";
     }
@@ -942,31 +1070,33 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addOrganization(org);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasOrganizations()) {
-        out.println("organizations:");
+        out.append("organizations:\n");
         for (Organization organization : contact.getOrganizations()) {
-          out.print("  " + organization.getOrgName().getValue());
+          out.append("  ").append(organization.getOrgName().getValue());
           if (organization.hasRel()) {
-            out.print(" rel:" + organization.getRel());
+            out.append(" rel:").append(organization.getRel());
           }
           if (organization.hasLabel()) {
-            out.print(" label:" + organization.getLabel());
+            out.append(" label:").append(organization.getLabel());
           }
           if (organization.hasOrgDepartment()) {
-            out.print(" department:"
-                + organization.getOrgDepartment().getValue());
+            out.append(" department:")
+                .append(organization.getOrgDepartment().getValue());
           }
           if (organization.hasOrgTitle()) {
-            out.print(" title:" + organization.getOrgTitle().getValue());
+            out.append(" title:").append(organization.getOrgTitle().getValue());
           }
           if (organization.hasOrgSymbol()) {
-            out.print(" symbol:" + organization.getOrgSymbol().getValue());
+            out.append(" symbol:")
+                .append(organization.getOrgSymbol().getValue());
           }
           if (organization.hasWhere()) {
-            out.print(" where:" + organization.getWhere().getValueString());
+            out.append(" where:")
+                .append(organization.getWhere().getValueString());
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -979,6 +1109,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasOrganizations()
+          && differs(dest.getOrganizations(), src.getOrganizations());
+    }
+
     public String getUsage() {
       return "<name>"
           + "[,rel:<rel>]"
@@ -1011,24 +1146,24 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addPhoneNumber(phone);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasPhoneNumbers()) {
-        out.println("phone numbers:");
+        out.append("phone numbers:\n");
         for (PhoneNumber phone : contact.getPhoneNumbers()) {
-          out.print("  " + phone.getPhoneNumber());
+          out.append("  ").append(phone.getPhoneNumber());
           if (phone.getRel() != null) {
-            out.print(" rel:" + phone.getRel());
+            out.append(" rel:").append(phone.getRel());
           }
           if (phone.getLabel() != null) {
-            out.print(" label:" + phone.getLabel());
+            out.append(" label:").append(phone.getLabel());
           }
           if (phone.getUri() != null) {
-            out.print(" uri:" + phone.getUri());
+            out.append(" uri:").append(phone.getUri());
           }
           if (phone.getPrimary()) {
-            out.print(" (primary)");
+            out.append(" (primary)");
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -1041,6 +1176,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasPhoneNumbers()
+          && differs(dest.getPhoneNumbers(), src.getPhoneNumbers());
+    }
+
     public String getUsage() {
       return "<phone>"
           + "[,rel:<rel>]"
@@ -1058,10 +1198,11 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setPriority(priority);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasPriority()) {
-        out.println("priority: "
-            + contact.getPriority().getRel().toString().toLowerCase());
+        out.append("priority: ")
+            .append(contact.getPriority().getRel().toString().toLowerCase())
+            .append('\n');
       }
     }
 
@@ -1071,6 +1212,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasPriority()
+          && differs(dest.getPriority(), src.getPriority());
+    }
+
     public String getUsage() {
       return "low|normal|high";
     }
@@ -1090,17 +1236,18 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addRelation(relation);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasRelations()) {
-        out.println("relations:");
+        out.append("relations:\n");
         for (Relation relation : contact.getRelations()) {
-          out.print("  " + relation.getValue());
+          out.append("  ").append(relation.getValue());
           if (relation.hasLabel()) {
-            out.print(" label:" + relation.getLabel());
+            out.append(" label:").append(relation.getLabel());
           } else if (relation.hasRel()) {
-            out.print(" rel:" + relation.getRel().toString().toLowerCase());
+            out.append(" rel:")
+                .append(relation.getRel().toString().toLowerCase());
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -1113,6 +1260,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasRelations()
+          && differs(dest.getRelations(), src.getRelations());
+    }
+
     public String getUsage() {
       return "<relation>"
           + "[,label:<label>]"
@@ -1130,10 +1282,11 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setSensitivity(sensitivity);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasSensitivity()) {
-        out.println("sensitivity:"
-            + contact.getSensitivity().getRel().toString().toLowerCase());
+        out.append("sensitivity:")
+            .append(contact.getSensitivity().getRel().toString().toLowerCase())
+            .append('\n');
       }
     }
 
@@ -1143,6 +1296,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasSensitivity()
+          && differs(dest.getSensitivity(), src.getSensitivity());
+    }
+
     public String getUsage() {
       return "confidental|normal|personal|private";
     }
@@ -1155,9 +1313,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setShortName(shortName);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasShortName()) {
-        out.println("short name:" + contact.getShortName().getValue());
+        out.append("short name:").append(contact.getShortName().getValue())
+            .append('\n');
       }
     }
 
@@ -1167,6 +1326,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasShortName()
+          && differs(dest.getShortName(), src.getShortName());
+    }
+
     public String getUsage() {
       return "<short_name>";
     }
@@ -1214,46 +1378,48 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addStructuredPostalAddress(address);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasStructuredPostalAddresses()) {
-        out.println("addresses:");
+        out.append("addresses:\n");
         for (StructuredPostalAddress address
             : contact.getStructuredPostalAddresses()) {
-          out.print("  ");
+          out.append("  ");
           if (address.hasRel()) {
-            out.print(" rel:" + address.getRel());
+            out.append(" rel:").append(address.getRel());
           }
           if (address.hasLabel()) {
-            out.print(" label:" + address.getLabel());
+            out.append(" label:").append(address.getLabel());
           }
           if (address.hasCity()) {
-            out.print(" city:" + address.getCity().getValue());
+            out.append(" city:").append(address.getCity().getValue());
           }
           if (address.hasCountry()) {
-            out.print(" country:" + address.getCountry().getValue());
+            out.append(" country:").append(address.getCountry().getValue());
           }
           if (address.hasFormattedAddress()) {
-            out.print(" formatted:" + address.getFormattedAddress().getValue());
+            out.append(" formatted:")
+                .append(address.getFormattedAddress().getValue());
           }
           if (address.hasNeighborhood()) {
-            out.print(" neighborhood:" + address.getNeighborhood().getValue());
+            out.append(" neighborhood:")
+                .append(address.getNeighborhood().getValue());
           }
           if (address.hasPobox()) {
-            out.print(" pobox:" + address.getPobox().getValue());
+            out.append(" pobox:").append(address.getPobox().getValue());
           }
           if (address.hasPostcode()) {
-            out.print(" postcode:" + address.getPostcode().getValue());
+            out.append(" postcode:").append(address.getPostcode().getValue());
           }
           if (address.hasRegion()) {
-            out.print(" region:" + address.getRegion().getValue());
+            out.append(" region:").append(address.getRegion().getValue());
           }
           if (address.hasStreet()) {
-            out.print(" street:" + address.getStreet().getValue());
+            out.append(" street:").append(address.getStreet().getValue());
           }
           if (address.getPrimary()) {
-            out.print(" (primary)");
+            out.append(" (primary)");
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -1267,6 +1433,12 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasStructuredPostalAddresses()
+          && differs(dest.getStructuredPostalAddresses(),
+              src.getStructuredPostalAddresses());
+    }
+
     public String getUsage() {
       return "[rel:<rel>]"
           + "[,label:<label>]"
@@ -1289,9 +1461,10 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.setSubject(subject);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasSubject()) {
-        out.println("subject:" + contact.getSubject().getValue());
+        out.append("subject:").append(contact.getSubject().getValue())
+            .append('\n');
       }
     }
 
@@ -1301,6 +1474,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasSubject()
+          && differs(dest.getSubject(), src.getSubject());
+    }
+
     public String getUsage() {
       return "<subject>";
     }
@@ -1314,11 +1492,12 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addUserDefinedField(userDefinedField);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasUserDefinedFields()) {
-        out.println("user defined fields:");
+        out.append("user defined fields:\n");
         for (UserDefinedField field : contact.getUserDefinedFields()) {
-          out.println("  " + field.getValue() + " key: " + field.getKey());
+          out.append("  ").append(field.getValue()).append(" key: ")
+              .append(field.getKey()).append('\n');
         }
       }
     }
@@ -1331,6 +1510,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasUserDefinedFields()
+          && differs(dest.getUserDefinedFields(), src.getUserDefinedFields());
+    }
+
     public String getUsage() {
       return "<value>,key:<key>";
     }
@@ -1342,7 +1526,7 @@ public enum ElementHelper implements ElementHelperInterface {
       website.setHref(parser.get(PropertyName.VALUE));
       if (parser.has(PropertyName.REL)) {
         website.setRel(
-            Website.Rel.valueOf(parser.get(PropertyName.REL).toLowerCase()));
+            Website.Rel.valueOf(parser.get(PropertyName.REL).toUpperCase()));
       }
       if (parser.has(PropertyName.LABEL)) {
         website.setLabel(parser.get(PropertyName.LABEL));
@@ -1353,21 +1537,22 @@ public enum ElementHelper implements ElementHelperInterface {
       contact.addWebsite(website);
     }
 
-    public void print(PrintStream out, ContactEntry contact) {
+    public void print(StringBuilder out, ContactEntry contact) {
       if (contact.hasWebsites()) {
-        out.println("websites:");
+        out.append("websites:\n");
         for (Website website : contact.getWebsites()) {
-          out.print("  " + website.getHref());
+          out.append("  ").append(website.getHref());
           if (website.hasRel()) {
-            out.print(" ref:" + website.getRel().toString().toLowerCase());
+            out.append(" ref:")
+                .append(website.getRel().toString().toLowerCase());
           }
           if (website.hasLabel()) {
-            out.print(" label:" + website.getLabel());
+            out.append(" label:").append(website.getLabel());
           }
           if (website.getPrimary()) {
-            out.print(" (primary)");
+            out.append(" (primary)");
           }
-          out.println();
+          out.append('\n');
         }
       }
     }
@@ -1380,6 +1565,11 @@ public enum ElementHelper implements ElementHelperInterface {
       }
     }
 
+    public boolean differs(ContactEntry dest, ContactEntry src) {
+      return src.hasWebsites()
+          && differs(dest.getWebsites(), src.getWebsites());
+    }
+
     public String getUsage() {
       return "<url>"
           + "[,rel:<rel>]"
@@ -1392,8 +1582,22 @@ public enum ElementHelper implements ElementHelperInterface {
   private final boolean repeatable;
   
   // some regexp for parameter parsing/checking
-  private final static Pattern REPEATED_ARG_PATTERN
-      = Pattern.compile("^(\\D+)\\d*$");
+  // Repeatable elements have their numbered argument names up to this
+  // index in the dispatch table, higher ones are looked up by stripping the
+  // digits.
+  private static final int NUMBERED_ARGUMENTS = 100;
+
+  // Profile used to serialize elements for comparison.
+  private static final ExtensionProfile PROFILE = new ExtensionProfile();
+  static {
+    new ContactEntry().declareExtensions(PROFILE);
+  }
+
+  // All helpers, values() clones the array on every call.
+  private static final ElementHelper[] HELPERS = values();
+
+  // Argument names mapped to the helpers, built once at class load.
+  private static final Map<String, ElementHelper> ARGUMENTS = arguments();
 
   // Constructors.
   ElementHelper(boolean repetable) { this.repeatable = repetable; }
@@ -1416,17 +1620,136 @@ public enum ElementHelper implements ElementHelperInterface {
         + this.toString().toLowerCase() + " element");
   }
   
-  private static ElementHelper find(String name) 
-      throws IllegalArgumentException {
-    Matcher m = REPEATED_ARG_PATTERN.matcher(name);
-    if (!m.matches()) {
-      throw new IllegalArgumentException("badly formated parameter: " + name);
+  private static Map<String, ElementHelper> arguments() {
+    Map<String, ElementHelper> arguments = new HashMap<String, ElementHelper>();
+    for (ElementHelper helper : values()) {
+      String name = helper.name().toLowerCase();
+      arguments.put(name, helper);
+      if (helper.repeatable) {
+        for (int i = 0; i < NUMBERED_ARGUMENTS; i++) {
+          arguments.put(name + i, helper);
+        }
+      }
     }
+    return arguments;
+  }
+
+  /**
+   * Finds the helper of an argument name. The name is the element name in 
+   * any case, optionally followed by a number.
+   *
+   * @param name the argument name.
+   * @return the helper, or {@code null} if there is no such element.
+   */
+  private static ElementHelper find(String name) {
+    ElementHelper helper = ARGUMENTS.get(name);
+    if (helper != null) {
+      return helper;
+    }
+    // upper case names and numbers beyond the table
+    int end = name.length();
+    while (end > 0 && name.charAt(end - 1) >= '0' && name.charAt(end - 1) <= '9') {
+      end--;
+    }
+    return end == 0 ? null 
+        : ARGUMENTS.get(name.substring(0, end).toLowerCase());
+  }
+
+  /**
+   * Compares two elements by their XML form, as few extensions implement
+   * equals.
+   *
+   * @param dest the element of the destination contact, may be null.
+   * @param src  the element of the source contact.
+   * @return {@code true} if the elements differ.
+   */
+  static boolean differs(Extension dest, Extension src) {
+    return dest == null || !toXml(dest).equals(toXml(src));
+  }
+
+  /**
+   * Compares two element lists by their XML form, order included.
+   *
+   * @param dest the elements of the destination contact.
+   * @param src  the elements of the source contact.
+   * @return {@code true} if the lists differ.
+   */
+  static boolean differs(List<? extends Extension> dest,
+      List<? extends Extension> src) {
+    if (dest.size() != src.size()) {
+      return true;
+    }
+    for (int i = 0; i < dest.size(); i++) {
+      if (differs(dest.get(i), src.get(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compares the notes of two contacts.
+   *
+   * @param dest the content of the destination contact, may be null.
+   * @param src  the content of the source contact.
+   * @return {@code true} if the contents differ.
+   */
+  static boolean differs(Content dest, Content src) {
+    if (dest instanceof TextContent && src instanceof TextContent) {
+      TextConstruct destText = ((TextContent) dest).getContent();
+      TextConstruct srcText = ((TextContent) src).getContent();
+      return destText == null || srcText == null
+          ? destText != srcText
+          : !destText.getPlainText().equals(srcText.getPlainText());
+    }
+    return dest != src;
+  }
+
+  private static String toXml(Extension extension) {
+    StringWriter xml = new StringWriter();
     try {
-      return valueOf(m.group(1).toUpperCase());
-    } catch (IllegalArgumentException ex) {
-      throw new IllegalArgumentException("unknown parameter: " + name);
+      XmlWriter writer = new XmlWriter(xml);
+      extension.generate(writer, PROFILE);
+      writer.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("cannot serialize " + extension, e);
+    }
+    return xml.toString();
+  }
+
+  /**
+   * Checks a --name=value argument.
+   *
+   * @param argument the argument.
+   * @return the index of the '=' separating the value.
+   * @throws IllegalArgumentException on a malformed argument.
+   */
+  private static int separator(String argument) {
+    if (!argument.startsWith("--")) {
+      throw new IllegalArgumentException("unknown argument: " + argument);
     }
+    int separator = argument.indexOf('=', 2);
+    if (separator < 0) {
+      throw new IllegalArgumentException("badly formated argument: " 
+          + argument);
+    }
+    return separator;
+  }
+
+  /**
+   * Looks up the helper of a --name=value argument.
+   *
+   * @param argument the argument.
+   * @param separator the index of the '=' in the argument.
+   * @return the helper.
+   * @throws IllegalArgumentException on an unknown argument.
+   */
+  private static ElementHelper find(String argument, int separator) {
+    ElementHelper helper = find(argument.substring(2, separator));
+    if (helper == null) {
+      throw new IllegalArgumentException("unknown argument: " + argument);
+    }
+    return helper;
   }
   
   /**
@@ -1446,20 +1769,9 @@ public enum ElementHelper implements ElementHelperInterface {
   public static void buildContact(ContactEntry contact, 
       List<String> parameters) {
     for (String string : parameters) {
-      if (!string.startsWith("--")) {
-        throw new IllegalArgumentException("unknown argument: " + string);
-      }
-      String param = string.substring(2);
-      String params[] = param.split("=", 2);
-      if (params.length != 2) {
-        throw new IllegalArgumentException("badly formated argument: " 
-            + string);
-      }
-      ElementHelper helper = find(params[0]);
-      if (helper == null) {
-        throw new IllegalArgumentException("unknown argument: " + string);
-      }
-      helper.parse(contact, new ElementParser(params[1]));
+      int separator = separator(string);
+      find(string, separator).parse(contact,
+          new ElementParser(string.substring(separator + 1)));
     }
   }
   
@@ -1480,20 +1792,9 @@ public enum ElementHelper implements ElementHelperInterface {
   public static void buildGroup(ContactGroupEntry group, 
       List<String> parameters) {
     for (String string : parameters) {
-      if (!string.startsWith("--")) {
-        throw new IllegalArgumentException("unknown argument: " + string);
-      }
-      String param = string.substring(2);
-      String params[] = param.split("=", 2);
-      if (params.length != 2) {
-        throw new IllegalArgumentException("badly formated argument: " 
-            + string);
-      }
-      ElementHelper helper = find(params[0]);
-      if (helper == null) {
-        throw new IllegalArgumentException("unknown argument: " + string);
-      }
-      helper.parseGroup(group, new ElementParser(params[1]));
+      int separator = separator(string);
+      find(string, separator).parseGroup(group,
+          new ElementParser(string.substring(separator + 1)));
     }
   }
   
@@ -1504,13 +1805,23 @@ public enum ElementHelper implements ElementHelperInterface {
    * exists in the source contact. Those elements not contained by the source
    * contact are left unchanged on the destination contact.
    * 
+   * Elements equal on both contacts are left alone.
+   * 
    * @param dest the destination contact to be updated.
    * @param src  the source contact
+   * @return the helpers of the elements that changed, empty if the update
+   *         left the destination contact as it was.
    */
-  public static void updateContact(ContactEntry dest, ContactEntry src) {
-    for (ElementHelper helper : values()) {
-      helper.update(dest, src);
+  public static List<ElementHelper> updateContact(ContactEntry dest,
+      ContactEntry src) {
+    List<ElementHelper> changed = new ArrayList<ElementHelper>();
+    for (ElementHelper helper : HELPERS) {
+      if (helper.differs(dest, src)) {
+        helper.update(dest, src);
+        changed.add(helper);
+      }
     }
+    return changed;
   }
   
   /**
@@ -1520,7 +1831,19 @@ public enum ElementHelper implements ElementHelperInterface {
    * @param contact the contact to be printed out.
    */
   public static void printContact(PrintStream out, ContactEntry contact) {
-    for (ElementHelper helper : values()) {
+    StringBuilder buffer = new StringBuilder(512);
+    printContact(buffer, contact);
+    out.print(buffer);
+  }
+
+  /**
+   * Appends the content of the contact in a human readable form.
+   * 
+   * @param out     the buffer to append to.
+   * @param contact the contact to be printed out.
+   */
+  public static void printContact(StringBuilder out, ContactEntry contact) {
+    for (ElementHelper helper : HELPERS) {
       helper.print(out, contact);
     }
   }
@@ -19,8 +19,6 @@ package com.freesundance.contacts.google;
 import com.google.gdata.data.contacts.ContactEntry;
 import com.google.gdata.data.contacts.ContactGroupEntry;
 
-import java.io.PrintStream;
-
 /**
  * Interface to define the common methods of the {@link ElementHelper}.
  * 
@@ -54,12 +52,12 @@ public interface ElementHelperInterface {
   public void parseGroup(ContactGroupEntry group, ElementParser parser); 
 
   /**
-   * Prints the content of the element to a stream.
+   * Prints the content of the element to a buffer.
    * 
-   * @param out      output stream.
+   * @param out      output buffer.
    * @param contact  the contact containing the element to print.
    */
-  public void print(PrintStream out, ContactEntry contact);
+  public void print(StringBuilder out, ContactEntry contact);
   
   /**
    * Updates element of destination contact with data from source contact.
@@ -72,6 +70,17 @@ public interface ElementHelperInterface {
    */
   public void update(ContactEntry dest, ContactEntry src);
 
+  /**
+   * Checks if updating the destination contact from the source contact would
+   * change the element, that is if the source contact has the element and
+   * it is not the same on the destination contact.
+   *
+   * @param dest  the destination contact entry.
+   * @param src   the source contact entry.
+   * @return {@code true} if {@link #update} would change the destination.
+   */
+  public boolean differs(ContactEntry dest, ContactEntry src);
+
   /**
    * Returns the usage help text regarding the formating of an element
    * description.
@@ -16,8 +16,7 @@
 
 package com.freesundance.contacts.google;
 
-import java.util.EnumMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Parser to tokenize element descriptions.
@@ -27,35 +26,122 @@ import java.util.Map;
  * For convenience a single unnamed value can be specified. It is treated as 
  * "value:<value>", and the parsed value can be accessed with the VALUE key.
  *
+ * A ',' or ':' inside a value is escaped with a backslash, as is a
+ * backslash itself. Only the first unescaped ':' of a property separates
+ * its name from its value. Empty properties are ignored, except that a
+ * description without any unnamed value, such as "" or ",rel:<rel>", has
+ * the empty value.
+ *
+ * The description is tokenized in a single pass. Property names are matched
+ * in place against a table of the known names, so the only strings created
+ * are the values themselves.
  * 
  */
 class ElementParser {
 
-  // Map of parsed property names and values.
-  private Map<PropertyName, String> propertyMap;
+  private static final char SEPARATOR = ',';
+  private static final char NAME_SEPARATOR = ':';
+  private static final char ESCAPE = '\\';
+
+  private static final int PROPERTY_COUNT = PropertyName.values().length;
+
+  // Property names grouped by the length of their name.
+  private static final PropertyName[][] NAMES_BY_LENGTH = namesByLength();
+
+  // Parsed property values indexed by the property ordinal.
+  private final String[] values = new String[PROPERTY_COUNT];
     
   /**
    * Constructor.
-   * Parses the element description, and fills the propertyMap.
+   * Parses the element description, and fills the property values.
    * 
    * @param elementDesc the element description.
    * @throws IllegalArgumentException on badly formated element description.
    */
   ElementParser(String elementDesc) throws IllegalArgumentException {
-    propertyMap = new EnumMap<PropertyName, String>(PropertyName.class);
-    for (String propertyDesc : elementDesc.split(",")) {
-      String nameValuePair[] = propertyDesc.split(":", 2);
-      if (nameValuePair.length == 1) {
-        propertyMap.put(PropertyName.VALUE, propertyDesc);
-      } else if (nameValuePair.length == 2){
-        propertyMap.put(
-            PropertyName.valueOf(nameValuePair[0].toUpperCase()), 
-            nameValuePair[1]);
-      } else {
-        throw new IllegalArgumentException("Badly formated property:" 
-            + propertyDesc);
+    int length = elementDesc.length();
+    int start = 0;
+    while (start <= length) {
+      int nameEnd = -1;
+      boolean escaped = false;
+      int end = start;
+      for (; end < length; end++) {
+        char c = elementDesc.charAt(end);
+        if (c == ESCAPE && end + 1 < length) {
+          escaped = true;
+          end++;
+        } else if (c == SEPARATOR) {
+          break;
+        } else if (c == NAME_SEPARATOR && nameEnd < 0) {
+          nameEnd = end;
+        }
+      }
+      if (end > start) {
+        if (nameEnd < 0) {
+          values[PropertyName.VALUE.ordinal()] =
+              value(elementDesc, start, end, escaped);
+        } else {
+          PropertyName name = lookup(elementDesc, start, nameEnd);
+          if (name == null) {
+            throw new IllegalArgumentException("Unknown property:"
+                + elementDesc.substring(start, nameEnd));
+          }
+          values[name.ordinal()] =
+              value(elementDesc, nameEnd + 1, end, escaped);
+        }
+      } else if (values[PropertyName.VALUE.ordinal()] == null) {
+        values[PropertyName.VALUE.ordinal()] = "";
+      }
+      start = end + 1;
+    }
+  }
+
+  private static String value(String desc, int start, int end,
+      boolean escaped) {
+    if (!escaped) {
+      return desc.substring(start, end);
+    }
+    StringBuilder value = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = desc.charAt(i);
+      if (c == ESCAPE && i + 1 < end) {
+        char next = desc.charAt(i + 1);
+        if (next == SEPARATOR || next == NAME_SEPARATOR || next == ESCAPE) {
+          c = next;
+          i++;
+        }
       }
+      value.append(c);
     }
+    return value.toString();
+  }
+
+  private static PropertyName lookup(String desc, int start, int end) {
+    int length = end - start;
+    if (length >= NAMES_BY_LENGTH.length) {
+      return null;
+    }
+    for (PropertyName name : NAMES_BY_LENGTH[length]) {
+      if (desc.regionMatches(true, start, name.name(), 0, length)) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  private static PropertyName[][] namesByLength() {
+    int longest = 0;
+    for (PropertyName name : PropertyName.values()) {
+      longest = Math.max(longest, name.name().length());
+    }
+    PropertyName[][] table = new PropertyName[longest + 1][0];
+    for (PropertyName name : PropertyName.values()) {
+      PropertyName[] sameLength = table[name.name().length()];
+      sameLength = Arrays.copyOf(sameLength, sameLength.length + 1);
+      sameLength[sameLength.length - 1] = name;
+      table[name.name().length()] = sameLength;
+    }
+    return table;
   }
   
   /**
@@ -66,7 +152,7 @@ class ElementParser {
    *         otherwise {@code false} 
    */
   boolean has(PropertyName property) {
-    return propertyMap.containsKey(property);
+    return values[property.ordinal()] != null;
   }
   
   /**
@@ -78,7 +164,7 @@ class ElementParser {
    *         string.
    */
   String get(PropertyName property) {
-    return propertyMap.get(property);
+    return values[property.ordinal()];
   }
   
   /**
@@ -89,8 +175,6 @@ class ElementParser {
    *         {@code false} in any other cases.
    */
   boolean is(PropertyName property) {
-    String value = propertyMap.get(property);
-    return (value != null) && (value.toLowerCase().equals("true"));
+    return "true".equalsIgnoreCase(values[property.ordinal()]);
   }
 }
-  
@@ -0,0 +1,184 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.Query;
+import com.google.gdata.client.Service;
+import com.google.gdata.data.BaseEntry;
+import com.google.gdata.data.BaseFeed;
+import com.google.gdata.data.Link;
+import com.google.gdata.util.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily walks every page of a GData feed by following the feed's next link.
+ * <p/>
+ * The first page is fetched when the iterator is opened. As soon as a page
+ * arrives the following one is requested in the background, so the network
+ * round trip for page N+1 overlaps with the caller working through page N.
+ * At most the current and the prefetched page are held in memory.
+ *
+ * @param <F> the feed type
+ * @param <E> the entry type of the feed
+ */
+public class FeedIterator<F extends BaseFeed<?, E>, E extends BaseEntry<?>>
+        implements Iterator<E>, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FeedIterator.class);
+
+    private final Service service;
+    private final Class<F> feedClass;
+    private final ExecutorService prefetcher;
+
+    private F currentFeed;
+    private Iterator<E> page;
+    private Future<F> nextPage;
+    private int pages;
+
+    private FeedIterator(Service service, Class<F> feedClass, F firstFeed) {
+        this.service = service;
+        this.feedClass = feedClass;
+        this.prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "feed-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        accept(firstFeed);
+    }
+
+    /**
+     * Opens an iterator over all entries of the feed at the given URL.
+     *
+     * @param service   the service used to fetch the pages.
+     * @param feedUrl   the URL of the first page.
+     * @param feedClass the feed class.
+     * @return an iterator positioned before the first entry.
+     */
+    public static <F extends BaseFeed<?, E>, E extends BaseEntry<?>> FeedIterator<F, E> open(
+            Service service, URL feedUrl, Class<F> feedClass) throws IOException, ServiceException {
+        return new FeedIterator<>(service, feedClass, RequestScheduler.getDefault().execute(
+                ClientMetrics.Operation.GET_FEED, () -> service.getFeed(feedUrl, feedClass)));
+    }
+
+    /**
+     * Opens an iterator over all entries matching the query. The query's
+     * max-results acts as the page size.
+     *
+     * @param service   the service used to fetch the pages.
+     * @param query     the query for the first page.
+     * @param feedClass the feed class.
+     * @return an iterator positioned before the first entry.
+     */
+    public static <F extends BaseFeed<?, E>, E extends BaseEntry<?>> FeedIterator<F, E> open(
+            Service service, Query query, Class<F> feedClass) throws IOException, ServiceException {
+        return new FeedIterator<>(service, feedClass, RequestScheduler.getDefault().execute(
+                ClientMetrics.Operation.QUERY, () -> service.query(query, feedClass)));
+    }
+
+    /**
+     * @return the feed page the iterator is currently positioned on.
+     */
+    public F getCurrentFeed() {
+        return currentFeed;
+    }
+
+    /**
+     * @return the number of pages fetched so far.
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * Wraps the iterator in a sequential stream. Closing the stream closes the
+     * iterator and stops any outstanding prefetch.
+     *
+     * @return a stream of all remaining entries.
+     */
+    public Stream<E> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(this::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (nextPage == null) {
+                close();
+                return false;
+            }
+            accept(await(nextPage));
+        }
+        return true;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void close() {
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+        prefetcher.shutdownNow();
+    }
+
+    private void accept(F feed) {
+        currentFeed = feed;
+        page = feed.getEntries().iterator();
+        pages++;
+        URL nextUrl = nextUrl(feed);
+        if (nextUrl == null) {
+            nextPage = null;
+        } else {
+            LOG.debug("prefetching page [{}] from [{}]", pages + 1, nextUrl);
+            nextPage = prefetcher.submit(() -> RequestScheduler.getDefault().execute(
+                    ClientMetrics.Operation.GET_FEED, () -> service.getFeed(nextUrl, feedClass)));
+        }
+    }
+
+    private F await(Future<F> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new RuntimeException("Interrupted while fetching feed page " + (pages + 1), e);
+        } catch (ExecutionException e) {
+            close();
+            throw new RuntimeException("Failed to fetch feed page " + (pages + 1), e.getCause());
+        }
+    }
+
+    private static URL nextUrl(BaseFeed<?, ?> feed) {
+        Link next = feed.getNextLink();
+        if (next == null || next.getHref() == null || next.getHref().length() == 0) {
+            return null;
+        }
+        try {
+            return new URL(next.getHref());
+        } catch (IOException e) {
+            throw new RuntimeException("Bad next link: " + next.getHref(), e);
+        }
+    }
+}
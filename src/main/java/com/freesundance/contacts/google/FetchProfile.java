@@ -0,0 +1,140 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.Query;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Named selections of what a contact read downloads: a projection plus a
+ * partial response {@code fields} selector.
+ * <p/>
+ * Partial entries must not be cached or sent back in an update, which would
+ * drop everything that was not fetched; they are for reading only.
+ */
+public enum FetchProfile {
+    /**
+     * Just enough to detect changes and address entries: id, ETag, update
+     * time, links and the deleted marker.
+     */
+    IDS_ETAGS("ids+etags", "thin", "@gd:etag,id,updated,link,gd:deleted"),
+    /**
+     * Ids plus names and phone numbers.
+     */
+    NAMES_PHONES("names+phones", "thin", "@gd:etag,id,updated,link,gd:deleted,title,gd:name,gd:phoneNumber"),
+    /**
+     * Ids plus names, phone numbers and email addresses, what duplicate
+     * detection compares.
+     */
+    NAMES_PHONES_EMAILS("names+phones+emails", "thin",
+            "@gd:etag,id,updated,link,gd:deleted,title,gd:name,gd:phoneNumber,gd:email"),
+    /**
+     * Complete entries.
+     */
+    FULL("full", "full", null);
+
+    /**
+     * Feed level elements every selection keeps: the next link for paging
+     * and the update time used as the sync watermark.
+     */
+    private static final String FEED_FIELDS = "title,link,updated,openSearch:totalResults";
+
+    private final String profileName;
+    private final String projection;
+    private final String entryFields;
+
+    FetchProfile(String profileName, String projection, String entryFields) {
+        this.profileName = profileName;
+        this.projection = projection;
+        this.entryFields = entryFields;
+    }
+
+    /**
+     * @param name a profile name such as "ids+etags", in any case.
+     * @return the profile.
+     */
+    public static FetchProfile parse(String name) {
+        for (FetchProfile profile : values()) {
+            if (profile.profileName.equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("unknown fetch profile: " + name);
+    }
+
+    public String getProfileName() {
+        return profileName;
+    }
+
+    public String getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return the selector for a single entry, or {@code null} for all of it.
+     */
+    public String getEntryFields() {
+        return entryFields;
+    }
+
+    /**
+     * @return the selector for a feed, or {@code null} for all of it.
+     */
+    public String getFeedFields() {
+        return entryFields != null ? FEED_FIELDS + ",entry(" + entryFields + ")" : null;
+    }
+
+    /**
+     * Points a feed URL at this profile's projection.
+     *
+     * @param feedUrl    the feed URL.
+     * @param projection the projection the URL currently names.
+     * @return the URL for this profile.
+     */
+    public URL feedUrl(URL feedUrl, String projection) throws MalformedURLException {
+        String url = feedUrl.toString();
+        String suffix = "/" + projection;
+        if (projection.equals(this.projection) || !url.endsWith(suffix)) {
+            return feedUrl;
+        }
+        return new URL(url.substring(0, url.length() - suffix.length()) + "/" + this.projection);
+    }
+
+    /**
+     * Restricts a query to this profile's fields.
+     *
+     * @param query the query.
+     * @return the query.
+     */
+    public Query apply(Query query) {
+        if (entryFields != null) {
+            query.setFields(getFeedFields());
+        }
+        return query;
+    }
+
+    /**
+     * Restricts a single entry read to this profile's fields.
+     *
+     * @param entryUrl the entry URL, already in this profile's projection.
+     * @return the URL with the selector added.
+     */
+    public URL entryUrl(URL entryUrl) throws MalformedURLException {
+        if (entryFields == null) {
+            return entryUrl;
+        }
+        try {
+            return new URL(entryUrl + (entryUrl.getQuery() == null ? "?" : "&")
+                    + "fields=" + URLEncoder.encode(entryFields, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return profileName;
+    }
+}
@@ -0,0 +1,16 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.util.ServiceException;
+
+import java.io.IOException;
+
+/**
+ * A single request to a GData service.
+ *
+ * @param <T> the result type
+ */
+@FunctionalInterface
+public interface GDataCall<T> {
+
+    T call() throws IOException, ServiceException;
+}
@@ -0,0 +1,172 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.Service;
+import com.google.gdata.data.BaseEntry;
+import com.google.gdata.util.NotModifiedException;
+import com.google.gdata.util.ServiceException;
+import com.google.gdata.util.common.xml.XmlWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk mirror of GData entries keyed by entry id.
+ * <p/>
+ * Every entry is kept in its own file holding the entry's ETag followed by
+ * its Atom representation. {@link #get(String, URL)} revalidates a cached
+ * entry with a conditional GET, so an unchanged entry costs a 304 instead of
+ * a full download.
+ *
+ * @param <E> the entry type
+ */
+public class LocalEntryStore<E extends BaseEntry<?>> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalEntryStore.class);
+
+    private static final String SUFFIX = ".atom";
+
+    private final Service service;
+    private final Path directory;
+    private final Class<E> entryClass;
+    private final RequestScheduler scheduler = RequestScheduler.getDefault();
+
+    /**
+     * @param service    the service used to revalidate entries.
+     * @param directory  the directory holding the entries.
+     * @param entryClass the entry class.
+     */
+    public LocalEntryStore(Service service, Path directory, Class<E> entryClass) throws IOException {
+        this.service = service;
+        this.directory = Files.createDirectories(directory);
+        this.entryClass = entryClass;
+    }
+
+    /**
+     * Returns the current version of an entry. A cached entry is revalidated
+     * with If-None-Match and returned as is when the server answers 304;
+     * otherwise the fresh entry is fetched and stored.
+     *
+     * @param id       the id of the entry.
+     * @param entryUrl the URL the entry is fetched from.
+     * @return the current entry.
+     */
+    public E get(String id, URL entryUrl) throws IOException, ServiceException {
+        E cached = read(id);
+        if (cached != null && cached.getEtag() != null) {
+            try {
+                E fresh = scheduler.execute(ClientMetrics.Operation.GET_ENTRY,
+                        () -> service.getEntry(entryUrl, entryClass, cached.getEtag()));
+                LOG.debug("entry [{}] changed on server", id);
+                put(id, fresh);
+                return fresh;
+            } catch (NotModifiedException e) {
+                LOG.debug("entry [{}] not modified", id);
+                return cached;
+            }
+        }
+        E fresh = scheduler.execute(ClientMetrics.Operation.GET_ENTRY,
+                () -> service.getEntry(entryUrl, entryClass));
+        put(id, fresh);
+        return fresh;
+    }
+
+    /**
+     * Reads an entry from the store without contacting the server.
+     *
+     * @param id the id of the entry.
+     * @return the stored entry, or {@code null} if it is not stored.
+     */
+    public E read(String id) throws IOException {
+        Path file = fileFor(id);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String etag = reader.readLine();
+            E entry = entryClass.newInstance();
+            entry.parseAtom(service.getExtensionProfile(), reader);
+            entry.setEtag(etag == null || etag.isEmpty() ? null : etag);
+            // lets update() and delete() on the entry go through our service
+            entry.setService(service);
+            return entry;
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Cannot create " + entryClass.getName(), e);
+        } catch (ServiceException e) {
+            LOG.warn("dropping unreadable entry [{}]: {}", id, e.toString());
+            Files.deleteIfExists(file);
+            return null;
+        }
+    }
+
+    /**
+     * Stores an entry under its own id.
+     *
+     * @param entry the entry.
+     */
+    public void put(E entry) throws IOException {
+        put(entry.getId(), entry);
+    }
+
+    /**
+     * Stores an entry, replacing any previous version.
+     *
+     * @param id    the id the entry is stored under.
+     * @param entry the entry.
+     */
+    public void put(String id, E entry) throws IOException {
+        Path file = fileFor(id);
+        Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(entry.getEtag() == null ? "" : entry.getEtag());
+            writer.write('\n');
+            XmlWriter xml = new XmlWriter(writer);
+            entry.generateAtom(xml, service.getExtensionProfile());
+            xml.flush();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes an entry from the store.
+     *
+     * @param id the id of the entry.
+     */
+    public void remove(String id) throws IOException {
+        Files.deleteIfExists(fileFor(id));
+    }
+
+    /**
+     * Removes every entry from the store.
+     */
+    public void clear() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private Path fileFor(String id) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(id.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return directory.resolve(name.append(SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
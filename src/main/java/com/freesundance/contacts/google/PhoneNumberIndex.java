@@ -0,0 +1,149 @@
+package com.freesundance.contacts.google;
+
+import com.freesundance.contacts.merge.PhoneNumbers;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.extensions.PhoneNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index from phone numbers in E.164 form to the ids of the
+ * contacts holding them.
+ * <p/>
+ * Numbers are canonicalized on the way in and on lookup, so "020 7946 0018",
+ * "+44 20 7946-0018" and "tel:+44-20-7946-0018" all find the same contact.
+ * Lookups are lock free; changes to a contact replace all of its numbers
+ * at once.
+ */
+public class PhoneNumberIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PhoneNumberIndex.class);
+
+    private final String countryCode;
+    private final Map<String, Set<String>> idsByNumber = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> numbersById = new ConcurrentHashMap<>();
+
+    /**
+     * @param countryCode the country calling code national numbers belong
+     *                    to, e.g. "44".
+     */
+    public PhoneNumberIndex(String countryCode) {
+        if (countryCode == null || !countryCode.matches("[1-9][0-9]{0,2}")) {
+            throw new IllegalArgumentException("illegal country code: " + countryCode);
+        }
+        this.countryCode = countryCode;
+    }
+
+    /**
+     * Indexes every contact of the iterator.
+     *
+     * @param contacts the contacts.
+     * @return this index.
+     */
+    public PhoneNumberIndex addAll(Iterator<ContactEntry> contacts) {
+        long start = System.nanoTime();
+        int count = 0;
+        while (contacts.hasNext()) {
+            put(contacts.next());
+            count++;
+        }
+        LOG.debug("indexed [{}] numbers of [{}] contacts in [{}] ms", idsByNumber.size(), count,
+                (System.nanoTime() - start) / 1000000);
+        return this;
+    }
+
+    /**
+     * Indexes a contact, replacing the numbers indexed for it before.
+     *
+     * @param contact the contact.
+     */
+    public synchronized void put(ContactEntry contact) {
+        String id = contact.getId();
+        if (id == null) {
+            return;
+        }
+        Set<String> numbers = new HashSet<>();
+        for (PhoneNumber phoneNumber : contact.getPhoneNumbers()) {
+            // the tel: uri is the server's own canonical form when present
+            String number = canonical(phoneNumber.getUri() != null
+                    ? phoneNumber.getUri() : phoneNumber.getPhoneNumber());
+            if (number != null) {
+                numbers.add(number);
+            }
+        }
+        unindex(id, numbersById.remove(id));
+        if (numbers.isEmpty()) {
+            return;
+        }
+        numbersById.put(id, numbers);
+        for (String number : numbers) {
+            idsByNumber.computeIfAbsent(number, key -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    /**
+     * Drops a contact from the index.
+     *
+     * @param id the id of the contact.
+     */
+    public synchronized void remove(String id) {
+        unindex(id, numbersById.remove(id));
+    }
+
+    private void unindex(String id, Set<String> numbers) {
+        if (numbers == null) {
+            return;
+        }
+        for (String number : numbers) {
+            Set<String> ids = idsByNumber.get(number);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    idsByNumber.remove(number);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the contacts holding a number.
+     *
+     * @param number the number in any common format.
+     * @return the ids of the contacts, empty if there are none.
+     */
+    public Set<String> find(String number) {
+        String canonical = canonical(number);
+        Set<String> ids = canonical != null ? idsByNumber.get(canonical) : null;
+        return ids != null ? Collections.unmodifiableSet(ids) : Collections.<String>emptySet();
+    }
+
+    /**
+     * @param number the number in any common format.
+     * @return the number in E.164 form, or {@code null} if it is not usable.
+     */
+    public String canonical(String number) {
+        return PhoneNumbers.toE164(number, countryCode);
+    }
+
+    /**
+     * @return the number of distinct numbers indexed.
+     */
+    public int size() {
+        return idsByNumber.size();
+    }
+
+    /**
+     * Empties the index.
+     */
+    public synchronized void clear() {
+        idsByNumber.clear();
+        numbersById.clear();
+    }
+}
@@ -0,0 +1,164 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.Service;
+import com.google.gdata.data.Link;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.util.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads contact photos on a bounded pool of worker threads so that
+ * listing contacts is not blocked on image I/O.
+ * <p/>
+ * Each response body is streamed straight into a {@link FileChannel} on a
+ * temporary file next to the target, which is then renamed into place, so a
+ * photo file is either complete or absent. When the queue of pending photos
+ * is full the submitting thread runs the download itself, which throttles
+ * the listing to the pace of the pool.
+ */
+public class PhotoDownloader implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PhotoDownloader.class);
+
+    static final String PHOTO_REL = "http://schemas.google.com/contacts/2008/rel#photo";
+
+    private final Service service;
+    private final Path directory;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger downloaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param service     the service used to fetch the photos.
+     * @param directory   the directory the photos are written to.
+     * @param concurrency the maximum number of photos downloaded at once.
+     */
+    public PhotoDownloader(Service service, Path directory, int concurrency) throws IOException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency should be > 0");
+        }
+        this.service = service;
+        this.directory = Files.createDirectories(directory);
+        AtomicInteger threads = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(concurrency * 4),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "photo-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Queues the photo of the contact for download. Contacts without an
+     * uploaded photo are ignored.
+     *
+     * @param contact the contact whose photo should be fetched.
+     * @return {@code true} if a download was queued.
+     */
+    public boolean submit(ContactEntry contact) {
+        // Since 2.0, the photo link is always there, the presence of an actual
+        // photo is indicated by the presence of an ETag.
+        Link photoLink = contact.getLink(PHOTO_REL, "image/*");
+        if (photoLink == null || photoLink.getEtag() == null) {
+            return false;
+        }
+        String selfHref = contact.getSelfLink().getHref();
+        Path target = directory.resolve(selfHref.substring(selfHref.lastIndexOf('/') + 1));
+        workers.execute(() -> download(photoLink, target));
+        return true;
+    }
+
+    private void download(Link photoLink, Path target) {
+        long start = System.nanoTime();
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(directory, target.getFileName().toString(), ".part");
+            Path part = tmp;
+            long bytes = RequestScheduler.getDefault().execute(ClientMetrics.Operation.PHOTO,
+                    () -> fetch(photoLink, part));
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            downloaded.incrementAndGet();
+            LOG.debug("photo [{}] {} bytes in {} ms", target.getFileName(), bytes,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | ServiceException e) {
+            failed.incrementAndGet();
+            LOG.warn("photo [{}] failed after {} ms: {}", target.getFileName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e.toString());
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                    // best effort, the .part file is harmless
+                }
+            }
+        }
+    }
+
+    private long fetch(Link photoLink, Path tmp) throws IOException, ServiceException {
+        Service.GDataRequest request = service.createLinkQueryRequest(photoLink);
+        try {
+            request.execute();
+            try (InputStream in = request.getResponseStream();
+                 ReadableByteChannel source = Channels.newChannel(in);
+                 FileChannel sink = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                for (long read; (read = sink.transferFrom(source, position, Long.MAX_VALUE)) > 0; ) {
+                    position += read;
+                }
+                return position;
+            }
+        } finally {
+            request.end();
+        }
+    }
+
+    /**
+     * @return the number of photos written so far.
+     */
+    public int getDownloaded() {
+        return downloaded.get();
+    }
+
+    /**
+     * @return the number of photos that could not be fetched.
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Waits for all queued downloads to finish and stops the workers.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.debug("waiting for {} photo downloads", workers.getActiveCount() + workers.getQueue().size());
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        LOG.debug("photos downloaded [{}] failed [{}]", downloaded.get(), failed.get());
+    }
+}
@@ -0,0 +1,120 @@
+package com.freesundance.contacts.google;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.ConnectionFactory;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.gdata.client.Service;
+import com.google.gdata.client.http.HttpGDataRequest;
+import com.google.gdata.client.http.HttpUrlConnectionSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+
+/**
+ * The connections every request to Google is made over.
+ * <p/>
+ * The OAuth credential and the GData services open their connections here,
+ * so they share the JDK keep-alive cache and one TLS context whose session
+ * cache lets new connections resume a session instead of doing a full
+ * handshake. Both clients already ask for gzip responses.
+ * <p/>
+ * The JDK reads the keep-alive cache size from {@code http.maxConnections}
+ * once, so the transport must be created before the first request of the
+ * process and a value given on the command line wins.
+ */
+public final class PooledHttpTransport implements HttpUrlConnectionSource, ConnectionFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+    /**
+     * Idle connections kept open per host unless configured otherwise.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+
+    private static final int SESSION_CACHE_SIZE = 64;
+    private static final int SESSION_TIMEOUT_SECONDS = 3600;
+
+    private static PooledHttpTransport shared;
+
+    private final SSLSocketFactory socketFactory;
+    private final NetHttpTransport httpTransport;
+
+    /**
+     * @param maxConnections idle connections kept open per host.
+     */
+    public PooledHttpTransport(int maxConnections) throws GeneralSecurityException, IOException {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("max connections should be > 0");
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(maxConnections));
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(GoogleUtils.getCertificateTrustStore());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        this.socketFactory = context.getSocketFactory();
+        this.httpTransport = new NetHttpTransport.Builder()
+                .setConnectionFactory(this)
+                .build();
+        LOG.debug("keeping up to [{}] connections per host alive", System.getProperty("http.maxConnections"));
+    }
+
+    /**
+     * @param maxConnections idle connections kept open per host, used when
+     *                       the transport is created by this call.
+     * @return the transport shared by the whole process.
+     */
+    public static synchronized PooledHttpTransport getShared(int maxConnections)
+            throws GeneralSecurityException, IOException {
+        if (shared == null) {
+            shared = new PooledHttpTransport(maxConnections);
+        }
+        return shared;
+    }
+
+    /**
+     * @return the transport for google-api-client, the OAuth credential in
+     *         particular.
+     */
+    public HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Makes a GData service open its connections here.
+     *
+     * @param service the service.
+     * @return the service.
+     */
+    public <S extends Service> S configure(S service) {
+        Service.GDataRequestFactory requestFactory = service.getRequestFactory();
+        if (requestFactory instanceof HttpGDataRequest.Factory) {
+            ((HttpGDataRequest.Factory) requestFactory).setConnectionSource(this);
+        } else {
+            LOG.warn("cannot pool connections of request factory [{}]", requestFactory.getClass().getName());
+        }
+        return service;
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,290 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.util.NotModifiedException;
+import com.google.gdata.util.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Paces the requests made to Google so bulk runs stay within quota.
+ * <p/>
+ * Requests take a token from a bucket refilled at the current rate and a
+ * slot under the current concurrency limit. Both adapt AIMD style: every
+ * healthy response raises them a little, a quota error (403 rate limit,
+ * 429 or 503) halves them, at most once per round of requests in flight.
+ * Throttled requests are retried after an exponential backoff with full
+ * jitter, or after the server's Retry-After when it sends one. The server
+ * rejected them without acting on them, so inserts are retried as well.
+ */
+public final class RequestScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestScheduler.class);
+
+    private static final double MIN_RATE = 0.5;
+    private static final int DEFAULT_MAX_ATTEMPTS = 8;
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+
+    private static final RequestScheduler DEFAULT =
+            new RequestScheduler(ClientMetrics.getDefault(), 10, 100, 4, 16);
+
+    private final ClientMetrics metrics;
+    private final double maxRate;
+    private final int maxConcurrency;
+
+    private final Object lock = new Object();
+    private double rate;
+    private double tokens;
+    private long refilledAt;
+    private double limit;
+    private int inFlight;
+    private long decreasedAt;
+
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+
+    /**
+     * @param metrics        where every attempt is recorded.
+     * @param rate           requests per second to start at.
+     * @param maxRate        requests per second never to exceed.
+     * @param concurrency    requests in flight to start at.
+     * @param maxConcurrency requests in flight never to exceed.
+     */
+    public RequestScheduler(ClientMetrics metrics, double rate, double maxRate, int concurrency,
+                            int maxConcurrency) {
+        if (rate < MIN_RATE || maxRate < rate) {
+            throw new IllegalArgumentException("rate should be between " + MIN_RATE + " and " + maxRate);
+        }
+        if (concurrency < 1 || maxConcurrency < concurrency) {
+            throw new IllegalArgumentException("concurrency should be between 1 and " + maxConcurrency);
+        }
+        this.metrics = metrics;
+        this.rate = rate;
+        this.maxRate = maxRate;
+        this.limit = concurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.tokens = 1;
+        this.refilledAt = System.nanoTime();
+        this.decreasedAt = refilledAt;
+    }
+
+    /**
+     * @return the scheduler shared by the whole process.
+     */
+    public static RequestScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param maxAttempts how many times a throttled request is tried in all.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("max attempts should be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param baseDelayMillis the backoff before the first retry.
+     * @param maxDelayMillis  the longest backoff.
+     */
+    public void setBackoff(long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("illegal backoff: " + baseDelayMillis + ", " + maxDelayMillis);
+        }
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Runs a call once it is allowed to, retrying it while it is throttled.
+     *
+     * @param operation the kind of request, for the metrics.
+     * @param call      the request.
+     * @return what the call returned.
+     */
+    public <T> T execute(ClientMetrics.Operation operation, GDataCall<T> call)
+            throws IOException, ServiceException {
+        for (int attempt = 1; ; attempt++) {
+            acquireToken();
+            long start = acquireSlot();
+            ServiceException throttled;
+            try {
+                T result = metrics.time(operation, call);
+                onSuccess();
+                return result;
+            } catch (NotModifiedException e) {
+                // a healthy answer to a conditional request
+                onSuccess();
+                throw e;
+            } catch (ServiceException e) {
+                if (!isThrottled(e)) {
+                    throw e;
+                }
+                onThrottled(start);
+                if (attempt >= maxAttempts) {
+                    LOG.warn("[{}] still throttled after [{}] attempts", operation, attempt);
+                    throw e;
+                }
+                throttled = e;
+            } finally {
+                release();
+            }
+            long delay = backoff(attempt, throttled);
+            LOG.debug("[{}] throttled ({}), retry [{}] in [{}] ms", operation,
+                    ClientMetrics.statusOf(throttled), attempt, delay);
+            retries.increment();
+            sleep(delay);
+        }
+    }
+
+    /**
+     * Whether a failure means the caller should slow down.
+     *
+     * @param e the failure.
+     * @return {@code true} for 429, 503 and rate limit 403s.
+     */
+    static boolean isThrottled(ServiceException e) {
+        int status = ClientMetrics.statusOf(e);
+        if (status == 429 || status == 503) {
+            return true;
+        }
+        if (status != 403) {
+            return false;
+        }
+        // a plain 403 is a permission problem, only the reason tells them apart
+        String text = (e.getMessage() + " " + e.getResponseBody()).toLowerCase(Locale.ENGLISH);
+        return text.contains("ratelimit") || text.contains("rate limit") || text.contains("quota");
+    }
+
+    private long backoff(int attempt, ServiceException e) {
+        List<String> retryAfter = e.getHttpHeader("Retry-After");
+        if (retryAfter != null && !retryAfter.isEmpty()) {
+            try {
+                long seconds = Long.parseLong(retryAfter.get(0).trim());
+                return Math.min(maxDelayMillis, TimeUnit.SECONDS.toMillis(seconds));
+            } catch (NumberFormatException ignored) {
+                // an HTTP date, fall back to our own backoff
+            }
+        }
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private void acquireToken() throws IOException {
+        long wait;
+        synchronized (lock) {
+            long now = System.nanoTime();
+            tokens = Math.min(Math.max(1, rate), tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+            // take the token now and wait for the deficit outside the lock
+            tokens -= 1;
+            wait = tokens < 0 ? (long) (-tokens / rate * 1e9) : 0;
+        }
+        if (wait > 0) {
+            sleep(TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+    }
+
+    private long acquireSlot() throws IOException {
+        synchronized (lock) {
+            while (inFlight >= (int) limit) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting to send a request", e);
+                }
+            }
+            inFlight++;
+            return System.nanoTime();
+        }
+    }
+
+    private void release() {
+        synchronized (lock) {
+            inFlight--;
+            lock.notifyAll();
+        }
+    }
+
+    private void onSuccess() {
+        synchronized (lock) {
+            // about one more slot per full round, one more request per second per second
+            limit = Math.min(maxConcurrency, limit + 1 / limit);
+            rate = Math.min(maxRate, rate + 1 / rate);
+            lock.notifyAll();
+        }
+    }
+
+    private void onThrottled(long start) {
+        throttles.increment();
+        synchronized (lock) {
+            if (start - decreasedAt < 0) {
+                // sent before the last decrease, which already accounted for it
+                return;
+            }
+            decreasedAt = System.nanoTime();
+            limit = Math.max(1, limit / 2);
+            rate = Math.max(MIN_RATE, rate / 2);
+            // drain the bucket so the burst it held is not spent right away
+            tokens = Math.min(tokens, 0);
+            LOG.info("throttled, slowing down to [{}] requests per second, [{}] in flight",
+                    String.format("%.1f", rate), (int) limit);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while pacing requests", e);
+        }
+    }
+
+    /**
+     * @return the current requests per second.
+     */
+    public double getRate() {
+        synchronized (lock) {
+            return rate;
+        }
+    }
+
+    /**
+     * @return the current number of requests allowed in flight.
+     */
+    public int getConcurrencyLimit() {
+        synchronized (lock) {
+            return (int) limit;
+        }
+    }
+
+    /**
+     * @return how many throttled requests were retried.
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return a one line account of the pacing, for the end of a CLI run.
+     */
+    public String summary() {
+        return String.format("rate %.1f/s, concurrency %d, throttled %d, retried %d",
+                getRate(), getConcurrencyLimit(), throttles.sum(), getRetries());
+    }
+}
@@ -0,0 +1,236 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.data.batch.BatchOperationType;
+import com.google.gdata.util.ServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a --script file, one command per line.
+ * <p/>
+ * Each line is parsed on top of the command line parameters. Consecutive
+ * contact adds, updates and deletes are coalesced into batch requests, and
+ * consecutive reads (list, query) run concurrently. A read waits for the
+ * mutations before it to be sent and a mutation waits for the reads before
+ * it to finish, and a contact already changed in the pending batch is sent
+ * before it is changed again, so the script still observes its own changes
+ * in order. Reads print what they found in script order once done.
+ * <p/>
+ * A line that fails is counted and the script goes on; what is still queued
+ * when the script ends, however it ends, is sent.
+ * <p/>
+ * An update or delete without an --id, or with --id=last, applies to the
+ * entry added most recently by the script.
+ */
+public class ScriptRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScriptRunner.class);
+
+    private static final String LAST_ADDED = "last";
+
+    private final ContactsExample example;
+    private final ContactsExampleParameters commandLineParams;
+    private final ExecutorService readers;
+    private final List<Future<StringBuilder>> pendingReads = new ArrayList<>();
+    private final Set<String> pendingIds = new HashSet<>();
+
+    private ContactBatch batch;
+    private String lastAddedId;
+    private String lastAddBatchId;
+    private int lineNumber;
+    private int failures;
+
+    /**
+     * @param example           the example instance running the operations.
+     * @param commandLineParams parameters every script line starts from.
+     * @param readConcurrency   how many reads may run at the same time.
+     */
+    public ScriptRunner(ContactsExample example, ContactsExampleParameters commandLineParams,
+                        int readConcurrency) {
+        this.example = example;
+        this.commandLineParams = commandLineParams;
+        AtomicInteger threads = new AtomicInteger();
+        this.readers = Executors.newFixedThreadPool(readConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "script-read-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs every line of the script.
+     *
+     * @param script the script file.
+     * @return the number of lines that failed.
+     */
+    public int run(Path script) throws IOException, ServiceException, GeneralSecurityException {
+        batch = example.newBatch();
+        try (BufferedReader reader = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    runLine(new ContactsExampleParameters(commandLineParams, line));
+                } catch (IllegalArgumentException | IOException | ServiceException e) {
+                    failures++;
+                    LOG.error("line {}: {}", lineNumber, e.getMessage());
+                }
+            }
+        } finally {
+            finish();
+        }
+        LOG.info("script [{}] finished, {} lines, {} failed", script, lineNumber, failures);
+        return failures;
+    }
+
+    /**
+     * Sends the mutations still queued and waits for the reads still running.
+     */
+    private void finish() {
+        try {
+            flushMutations();
+        } catch (IOException | ServiceException e) {
+            LOG.error("sending the last mutations failed: {}", e.getMessage());
+        }
+        try {
+            awaitReads();
+        } catch (IOException | ServiceException e) {
+            LOG.error("reads did not finish: {}", e.getMessage());
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private void runLine(ContactsExampleParameters parameters)
+            throws IOException, ServiceException, GeneralSecurityException {
+        ContactsExampleParameters.Actions action = parameters.getAction();
+        if (action == null) {
+            throw new IllegalArgumentException("no action");
+        }
+        if (action == ContactsExampleParameters.Actions.UPDATE
+                || action == ContactsExampleParameters.Actions.DELETE) {
+            resolveLastAdded(parameters);
+        }
+        switch (action) {
+            case LIST:
+            case QUERY:
+                flushMutations();
+                submitRead(parameters);
+                break;
+            case ADD:
+            case UPDATE:
+            case DELETE:
+                if (!parameters.isGroupFeed()) {
+                    awaitReads();
+                    if (parameters.getId() != null && pendingIds.contains(parameters.getId())) {
+                        // the change must build on the one already queued
+                        flushMutations();
+                    }
+                    String batchId = example.queueEntry(batch, parameters);
+                    if (action == ContactsExampleParameters.Actions.ADD) {
+                        lastAddBatchId = batchId;
+                        lastAddedId = null;
+                    } else if (batchId != null) {
+                        pendingIds.add(parameters.getId());
+                    }
+                    if (batch.pending() == 0) {
+                        // a full batch just went out, collect its results
+                        flushMutations();
+                    }
+                    break;
+                }
+                // fall through, groups are not batched
+            default:
+                flushMutations();
+                awaitReads();
+                ContactsExample.processAction(example, parameters);
+                if (action == ContactsExampleParameters.Actions.ADD) {
+                    lastAddedId = example.getLastAddedId();
+                    lastAddBatchId = null;
+                }
+        }
+    }
+
+    private void resolveLastAdded(ContactsExampleParameters parameters) throws IOException, ServiceException {
+        if (parameters.getId() != null && !LAST_ADDED.equals(parameters.getId())) {
+            return;
+        }
+        if (lastAddedId == null && lastAddBatchId != null) {
+            // the add is still queued, send it to learn the id
+            flushMutations();
+        }
+        if (lastAddedId == null) {
+            throw new IllegalArgumentException("no id given and no entry added before");
+        }
+        parameters.setId(lastAddedId);
+    }
+
+    private void submitRead(ContactsExampleParameters parameters) {
+        pendingReads.add(readers.submit(() -> ContactsExample.processCaptured(example, parameters)));
+    }
+
+    private void awaitReads() throws IOException, ServiceException {
+        try {
+            for (Future<StringBuilder> read : pendingReads) {
+                try {
+                    example.print(read.get());
+                } catch (ExecutionException e) {
+                    failures++;
+                    LOG.error("read failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for reads", e);
+        } finally {
+            pendingReads.clear();
+        }
+    }
+
+    private void flushMutations() throws IOException, ServiceException {
+        try {
+            collect(batch.flush());
+        } catch (IOException | ServiceException e) {
+            // the failed batch reports its operations as not processed
+            collect(batch.takeOutcomes());
+            throw e;
+        } finally {
+            pendingIds.clear();
+        }
+    }
+
+    private void collect(List<ContactBatch.Outcome> outcomes) throws IOException {
+        example.applyOutcomes(outcomes);
+        for (ContactBatch.Outcome outcome : outcomes) {
+            if (!outcome.isSuccess()) {
+                failures++;
+            }
+            if (outcome.getOperation() == BatchOperationType.INSERT
+                    && outcome.getBatchId().equals(lastAddBatchId)) {
+                if (outcome.isSuccess()) {
+                    lastAddedId = outcome.getId();
+                }
+                lastAddBatchId = null;
+            }
+        }
+    }
+}
@@ -28,10 +28,26 @@ import com.google.gdata.data.contacts.ContactFeed;
 import com.google.gdata.data.contacts.Status;
 import com.google.gdata.util.ServiceException;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * UnshareProfiles sample main class.
@@ -40,41 +56,70 @@ import java.util.List;
  */
 public class UnshareProfiles {
 
+  private static final String DEFAULT_ERROR_LOG = "unshare-profiles-errors.tsv";
+
   /**
-   * Class holding batch processing results.
+   * Class holding batch processing results. Batches running concurrently
+   * record into the same result, so every method is thread-safe.
+   * <p/>
+   * Failed entries are kept in memory unless an error log is given, in which
+   * case only their id, status code and reason are written to it, one tab
+   * separated line each, and the memory used stays flat however many fail.
    *
    * 
    */
-  public static class BatchResult {
+  public static class BatchResult implements Closeable {
     private int success;
     private int error;
-    private List<ContactEntry> errorEntries = new ArrayList<ContactEntry>();
+    private List<ContactEntry> errorEntries =
+        Collections.synchronizedList(new ArrayList<ContactEntry>());
+    private final Path errorLog;
+    private final Writer errorWriter;
+
+    /**
+     * Creates a result keeping failed entries in memory.
+     */
+    public BatchResult() {
+      this.errorLog = null;
+      this.errorWriter = null;
+    }
+
+    /**
+     * Creates a result writing failures to a file.
+     * @param errorLog the file, replaced if it exists
+     * @throws IOException if the file cannot be created
+     */
+    public BatchResult(Path errorLog) throws IOException {
+      this.errorLog = errorLog;
+      this.errorWriter = Files.newBufferedWriter(errorLog, StandardCharsets.UTF_8);
+      this.errorWriter.write("id\tcode\treason\n");
+    }
 
     /**
      * @return the success
      */
-    public int getSuccess() {
+    public synchronized int getSuccess() {
       return this.success;
     }
 
     /**
      * @param success the success to set
      */
-    public void setSuccess(int success) {
+    public synchronized void setSuccess(int success) {
       this.success = success;
     }
 
     /**
      * @return the error
      */
-    public int getError() {
+    public synchronized int getError() {
       return this.error;
     }
 
     /**
      * @param error the error to set
      */
-    public void setError(int error) {
+    public synchronized void setError(int error) {
       this.error = error;
     }
 
@@ -89,6 +134,59 @@ public class UnshareProfiles {
       this.errorEntries.add(erroEntry);
       return this.errorEntries;
     }
+
+    /**
+     * Counts a successful operation.
+     */
+    public synchronized void recordSuccess() {
+      this.success++;
+    }
+
+    /**
+     * Counts a failed operation and keeps its entry, or logs it when there
+     * is an error log.
+     * @param errorEntry the entry returned for the operation
+     * @throws IOException if the error log cannot be written
+     */
+    public synchronized void recordError(ContactEntry errorEntry) throws IOException {
+      this.error++;
+      if (this.errorWriter == null) {
+        this.errorEntries.add(errorEntry);
+        return;
+      }
+      BatchStatus status = BatchUtils.getBatchStatus(errorEntry);
+      this.errorWriter.append(clean(errorEntry.getId())).append('\t')
+          .append(status != null ? Integer.toString(status.getCode()) : "").append('\t')
+          .append(clean(status != null ? status.getReason() : null)).append('\n');
+    }
+
+    private static String clean(String value) {
+      return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * @return the error log, or null if failed entries are kept in memory
+     */
+    public Path getErrorLog() {
+      return this.errorLog;
+    }
+
+    /**
+     * Pushes logged failures to disk.
+     * @throws IOException if the error log cannot be written
+     */
+    public synchronized void flush() throws IOException {
+      if (this.errorWriter != null) {
+        this.errorWriter.flush();
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (this.errorWriter != null) {
+        this.errorWriter.close();
+      }
+    }
   }
 
   /**
@@ -98,10 +196,17 @@ public class UnshareProfiles {
    * 
    */
   public static class ProfilesManager {
+    /**
+     * Batches sent at the same time unless configured otherwise.
+     */
+    public static final int DEFAULT_BATCHES_IN_FLIGHT = 4;
+
     private String domain;
     private String adminEmail;
     private int batchSize = 100;
+    private int batchesInFlight = DEFAULT_BATCHES_IN_FLIGHT;
     private List<ContactEntry> profiles;
+    private Path errorLog;
     private ContactsService myService;
 
     /**
@@ -109,9 +214,10 @@ public class UnshareProfiles {
      * @param consumerKey domain consumer key
      * @param consumerSecret domain consumer secret
      * @param adminEmail domain administrator to authenticate as
+     * @throws GeneralSecurityException if the TLS context cannot be set up
      */
     public ProfilesManager(String consumerKey, String consumerSecret, String adminEmail)
-        throws OAuthException {
+        throws OAuthException, GeneralSecurityException, IOException {
       this.adminEmail = adminEmail;
       this.domain = adminEmail.substring(adminEmail.indexOf('@') + 1);
 
@@ -119,24 +225,60 @@ public class UnshareProfiles {
       oauthParameters.setOAuthConsumerKey(consumerKey);
       oauthParameters.setOAuthConsumerSecret(consumerSecret);
 
-      this.myService = new ContactsService("GoogleInc-UnshareProfiles-1");
+      this.myService = PooledHttpTransport.getShared(
+          PooledHttpTransport.DEFAULT_MAX_CONNECTIONS).configure(
+          new ContactsService("GoogleInc-UnshareProfiles-1"));
       this.myService.setOAuthCredentials(oauthParameters, new OAuthHmacSha1Signer());
     }
 
     /**
-     * @return batch processing size
+     * @return the largest batch sent; the size actually used adapts below it
+     *     to the server's latency and error rate
      */
     public int getBatchSize() {
       return this.batchSize;
     }
 
     /**
-     * @param value the batch processing size to set
+     * @param value the largest batch to send
      */
     public void setBatchSize(int value) {
       this.batchSize = value;
     }
 
+    /**
+     * @return how many batches may be sent at the same time
+     */
+    public int getBatchesInFlight() {
+      return this.batchesInFlight;
+    }
+
+    /**
+     * @param value how many batches may be sent at the same time
+     */
+    public void setBatchesInFlight(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("batches in flight should be > 0");
+      }
+      this.batchesInFlight = value;
+    }
+
+    /**
+     * @return the file failures are written to, or null to keep them in
+     *     memory
+     */
+    public Path getErrorLog() {
+      return this.errorLog;
+    }
+
+    /**
+     * @param errorLog the file failures are written to, or null to keep them
+     *     in memory
+     */
+    public void setErrorLog(Path errorLog) {
+      this.errorLog = errorLog;
+    }
+
     /**
      * @return domain's profiles list
      */
@@ -145,72 +287,233 @@ public class UnshareProfiles {
     }
 
     /**
-     * Retrieve all porfiles for the domain
+     * Retrieve all porfiles for the domain. The whole list is held in memory;
+     * {@link #unshareProfiles()} does not need it and streams the profiles
+     * a page at a time instead.
      */
     public void getAllProfiles() throws IOException, ServiceException {
       ArrayList<ContactEntry> profiles = new ArrayList<ContactEntry>();
 
-      URL feedUrl =
-          new URL("https://www.google.com/m8/feeds/profiles/domain/" + this.domain
-              + "/full?xoauth_requestor_id=" + this.adminEmail);
-      while (feedUrl != null) {
-        ContactFeed resultFeed = this.myService.getFeed(feedUrl, ContactFeed.class);
-
-        profiles.addAll(resultFeed.getEntries());
-
-        if (resultFeed.getNextLink() != null && resultFeed.getNextLink().getHref() != null
-            && resultFeed.getNextLink().getHref().length() > 0) {
-          feedUrl = new URL(resultFeed.getNextLink().getHref());
-        } else {
-          feedUrl = null;
+      try (FeedIterator<ContactFeed, ContactEntry> pages = openProfiles()) {
+        while (pages.hasNext()) {
+          profiles.add(pages.next());
         }
+      } catch (RuntimeException e) {
+        throw unwrap(e);
       }
       this.profiles = profiles;
     }
 
+    private FeedIterator<ContactFeed, ContactEntry> openProfiles()
+        throws IOException, ServiceException {
+      URL feedUrl =
+          new URL("https://www.google.com/m8/feeds/profiles/domain/" + this.domain
+              + "/full?xoauth_requestor_id=" + this.adminEmail);
+      return FeedIterator.open(this.myService, feedUrl, ContactFeed.class);
+    }
+
     /**
-     * Unshare all profiles information from the GAD/Google Apps Directory
-     * @return batch processing result
+     * Unshare all profiles information from the GAD/Google Apps Directory.
+     * Unless the profiles were listed beforehand, batches are sent while
+     * the following pages of profiles are still being fetched, with up to
+     * {@link #getBatchesInFlight()} batches sent at the same time, so no more
+     * than a few pages of profiles are held at once. The first failed request
+     * stops the run once the batches in flight are done.
+     * @return batch processing result, closed and with its error log written
+     *     when one is set
      * @throws IOException
      * @throws ServiceException
      */
     public BatchResult unshareProfiles() throws IOException, ServiceException {
-      if (this.profiles == null) {
-        this.getAllProfiles();
+      try (BatchResult result = this.errorLog != null
+          ? new BatchResult(this.errorLog) : new BatchResult()) {
+        unshareProfiles(result);
+        return result;
       }
-      BatchResult result = new BatchResult();
-      Status status = new Status();
-      int index = 0;
+    }
 
+    private void unshareProfiles(BatchResult result) throws IOException, ServiceException {
+      Status status = new Status();
       status.setIndexed(false);
-      while (index < this.profiles.size()) {
-        ContactFeed requestFeed = new ContactFeed();
 
-        for (int i = 0; i < this.batchSize && index < this.profiles.size(); ++i, ++index) {
-          ContactEntry entry = this.profiles.get(index);
+      FeedIterator<ContactFeed, ContactEntry> pages = null;
+      try (BatchPipeline pipeline = new BatchPipeline(result)) {
+        Iterator<ContactEntry> profiles;
+        if (this.profiles != null) {
+          profiles = this.profiles.iterator();
+        } else {
+          pages = openProfiles();
+          profiles = pages;
+        }
+        ContactFeed requestFeed = new ContactFeed();
+        while (profiles.hasNext() && !pipeline.failed()) {
+          ContactEntry entry = profiles.next();
 
           entry.setStatus(status);
           BatchUtils.setBatchOperationType(entry, BatchOperationType.UPDATE);
           requestFeed.getEntries().add(entry);
+          if (requestFeed.getEntries().size() >= pipeline.batchSize()) {
+            pipeline.submit(requestFeed);
+            requestFeed = new ContactFeed();
+          }
+        }
+        if (!requestFeed.getEntries().isEmpty() && !pipeline.failed()) {
+          pipeline.submit(requestFeed);
+        }
+        pipeline.await();
+      } catch (RuntimeException e) {
+        throw unwrap(e);
+      } finally {
+        if (pages != null) {
+          pages.close();
+        }
+      }
+    }
+
+    private static RuntimeException unwrap(RuntimeException e)
+        throws IOException, ServiceException {
+      // feed pages fetched in the background fail wrapped
+      if (e.getCause() instanceof ServiceException) {
+        throw (ServiceException) e.getCause();
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      return e;
+    }
+
+    /**
+     * Sends batches in the background, a bounded number at a time.
+     */
+    private class BatchPipeline implements Closeable {
+      private final BatchResult result;
+      private final URL batchUrl;
+      private final ExecutorService senders;
+      private final Semaphore inFlight;
+      private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      private final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(batchSize);
+
+      BatchPipeline(BatchResult result) throws IOException {
+        this.result = result;
+        this.batchUrl = new URL("https://www.google.com/m8/feeds/profiles/domain/"
+            + domain + "/full/batch?xoauth_requestor_id=" + adminEmail);
+        this.inFlight = new Semaphore(batchesInFlight);
+        AtomicInteger threads = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(batchesInFlight, runnable -> {
+          Thread thread = new Thread(runnable, "unshare-batch-" + threads.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+
+      int batchSize() {
+        return this.sizer.size();
+      }
+
+      boolean failed() {
+        return this.failure.get() != null;
+      }
+
+      /**
+       * Sends a batch once fewer than the allowed number are in flight.
+       */
+      void submit(ContactFeed requestFeed) throws IOException {
+        acquire(1);
+        try {
+          this.senders.execute(() -> {
+            try {
+              send(requestFeed.getEntries());
+              this.result.flush();
+            } catch (IOException | ServiceException | RuntimeException e) {
+              this.failure.compareAndSet(null, e);
+            } finally {
+              this.inFlight.release();
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          this.inFlight.release();
+          throw e;
+        }
+      }
+
+      /**
+       * Waits for every batch to be answered and rethrows the first failure.
+       */
+      void await() throws IOException, ServiceException {
+        acquire(batchesInFlight);
+        this.inFlight.release(batchesInFlight);
+        Exception e = this.failure.get();
+        if (e instanceof IOException) {
+          throw (IOException) e;
+        } else if (e instanceof ServiceException) {
+          throw (ServiceException) e;
+        } else if (e != null) {
+          throw (RuntimeException) e;
         }
+      }
 
-        ContactFeed responseFeed =
-            myService.batch(new URL("https://www.google.com/m8/feeds/profiles/domain/"
-                + this.domain + "/full/batch?xoauth_requestor_id=" + this.adminEmail), requestFeed);
+      private void acquire(int permits) throws IOException {
+        try {
+          this.inFlight.acquire(permits);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for batches", e);
+        }
+      }
+
+      /**
+       * Sends a batch, in halves if it is too large.
+       */
+      private void send(List<ContactEntry> entries) throws IOException, ServiceException {
+        ContactFeed requestFeed = new ContactFeed();
+        requestFeed.getEntries().addAll(entries);
+        long start = System.nanoTime();
+        ContactFeed responseFeed;
+        try {
+          responseFeed = RequestScheduler.getDefault().execute(
+              ClientMetrics.Operation.BATCH,
+              () -> myService.batch(this.batchUrl, requestFeed));
+        } catch (IOException | ServiceException e) {
+          this.sizer.onFailure(entries.size());
+          if (!AdaptiveBatchSizer.isSplittable(e) || entries.size() < 2) {
+            throw e;
+          }
+          int half = entries.size() / 2;
+          send(entries.subList(0, half));
+          send(entries.subList(half, entries.size()));
+          return;
+        }
 
         // Check the status of each operation.
+        int serverErrors = 0;
         for (ContactEntry entry : responseFeed.getEntries()) {
           BatchStatus batchStatus = BatchUtils.getBatchStatus(entry);
 
           if (batchStatus.getCode() == 200) {
-            result.setSuccess(result.getSuccess() + 1);
+            this.result.recordSuccess();
           } else {
-            result.setError(result.getError() + 1);
-            result.addErrorEntry(entry);
+            if (batchStatus.getCode() >= 500) {
+              serverErrors++;
+            }
+            this.result.recordError(entry);
           }
         }
+        this.sizer.onResponse(entries.size(), System.nanoTime() - start, serverErrors);
+      }
+
+      /**
+       * Lets the batches in flight finish, so none is cut off halfway.
+       */
+      @Override
+      public void close() {
+        this.senders.shutdown();
+        try {
+          this.senders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          this.senders.shutdownNow();
+        }
       }
-      return result;
     }
   }
 
@@ -220,25 +523,31 @@ public class UnshareProfiles {
    * @throws OAuthException
    * @throws IOException
    * @throws ServiceException
+   * @throws GeneralSecurityException
    */
-  public static void main(String[] args) throws OAuthException, IOException, ServiceException {
-    if (args.length != 3) {
-      System.out.println("Usage: unshare_profile <consumerKey> <consumerSecret> <adminEmail>");
+  public static void main(String[] args)
+      throws OAuthException, IOException, ServiceException, GeneralSecurityException {
+    if (args.length < 3 || args.length > 5) {
+      System.out.println("Usage: unshare_profile <consumerKey> <consumerSecret> <adminEmail>"
+          + " [<batchesInFlight> [<errorLog>]]");
     } else {
       String consumerKey = args[0];
       String consumerSecret = args[1];
       String adminEmail = args[2];
       ProfilesManager manager = new ProfilesManager(consumerKey, consumerSecret, adminEmail);
+      if (args.length >= 4) {
+        manager.setBatchesInFlight(Integer.parseInt(args[3]));
+      }
+      manager.setErrorLog(Paths.get(args.length == 5 ? args[4] : DEFAULT_ERROR_LOG));
 
       BatchResult result = manager.unshareProfiles();
 
       System.out.println("Success: " + result.getSuccess() + " - Error: " + result.getError());
-      for (ContactEntry entry : result.getErrorEntries()) {
-        BatchStatus status = BatchUtils.getBatchStatus(entry);
-
-        System.out.println(" > Failed to update " + entry.getId() + ": (" + status.getCode() + ") "
-            + status.getReason());
+      if (result.getError() > 0) {
+        System.out.println(" > Failed updates are listed in " + result.getErrorLog());
       }
+      System.out.println(RequestScheduler.getDefault().summary());
+      System.out.print(ClientMetrics.getDefault().summary());
     }
   }
 }
@@ -0,0 +1,131 @@
+package com.freesundance.contacts.merge;
+
+import ezvcard.VCard;
+import ezvcard.property.Email;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The key fields of a vCard used to match records between two exports: the
+ * UID, a normalized name and the phone numbers in E.164 form, plus a hash of
+ * the compared content to tell whether two matched cards differ. The hash
+ * is a 64-bit FNV-1a, so two different cards sharing it is unlikely enough
+ * to ignore.
+ */
+final class CardKey {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final char VALUE_SEPARATOR = '\u0000';
+    private static final char FIELD_SEPARATOR = '\u0001';
+
+    private final String uid;
+    private final String name;
+    private final String[] phones;
+    private final long contentHash;
+
+    private CardKey(String uid, String name, String[] phones, long contentHash) {
+        this.uid = uid;
+        this.name = name;
+        this.phones = phones;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * @param card        the card.
+     * @param countryCode the country calling code national numbers belong
+     *                    to, e.g. "44".
+     */
+    static CardKey of(VCard card, String countryCode) {
+        String uid = card.getUid() != null ? card.getUid().getValue() : null;
+        String name = normalizeName(card);
+
+        Set<String> phoneSet = new LinkedHashSet<>();
+        for (Telephone telephone : card.getTelephoneNumbers()) {
+            String phone = PhoneNumbers.toE164(telephone.getText(), countryCode);
+            if (phone != null) {
+                phoneSet.add(phone);
+            }
+        }
+        String[] phones = phoneSet.toArray(new String[phoneSet.size()]);
+
+        String[] emails = new String[card.getEmails().size()];
+        int i = 0;
+        for (Email email : card.getEmails()) {
+            emails[i++] = email.getValue() == null ? "" : email.getValue().trim().toLowerCase(Locale.ROOT);
+        }
+
+        String[] sortedPhones = phones.clone();
+        Arrays.sort(sortedPhones);
+        Arrays.sort(emails);
+        long hash = FNV_OFFSET;
+        if (name != null) {
+            hash = update(hash, name);
+        }
+        hash = (hash ^ FIELD_SEPARATOR) * FNV_PRIME;
+        for (String phone : sortedPhones) {
+            hash = (hash ^ VALUE_SEPARATOR) * FNV_PRIME;
+            hash = update(hash, phone);
+        }
+        hash = (hash ^ FIELD_SEPARATOR) * FNV_PRIME;
+        for (String email : emails) {
+            hash = (hash ^ VALUE_SEPARATOR) * FNV_PRIME;
+            hash = update(hash, email);
+        }
+        return new CardKey(uid, name, phones, hash);
+    }
+
+    private static long update(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Lower-cases, strips accents and punctuation and collapses whitespace,
+     * so "Jöhn  O'Neil" and "john oneil" give the same key.
+     */
+    static String normalizeName(VCard card) {
+        StringBuilder raw = new StringBuilder();
+        StructuredName structuredName = card.getStructuredName();
+        if (structuredName != null) {
+            append(raw, structuredName.getGiven());
+            append(raw, structuredName.getFamily());
+        }
+        if (raw.length() == 0 && card.getFormattedName() != null) {
+            append(raw, card.getFormattedName().getValue());
+        }
+        return Names.normalize(raw);
+    }
+
+    private static void append(StringBuilder raw, String part) {
+        if (part != null && !part.trim().isEmpty()) {
+            raw.append(part.trim()).append(' ');
+        }
+    }
+
+    String getUid() {
+        return uid;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String[] getPhones() {
+        return phones;
+    }
+
+    long getContentHash() {
+        return contentHash;
+    }
+}
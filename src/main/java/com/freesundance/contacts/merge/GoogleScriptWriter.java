@@ -0,0 +1,154 @@
+package com.freesundance.contacts.merge;
+
+import ezvcard.VCard;
+import ezvcard.parameter.EmailType;
+import ezvcard.parameter.TelephoneType;
+import ezvcard.property.Email;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Writes ContactsExample --script lines that bring Google in line with the
+ * phone: adds for contacts only the phone has, and updates that add numbers
+ * only the phone knows to a matched contact.
+ */
+final class GoogleScriptWriter implements Closeable {
+
+    private static final String REL = "http://schemas.google.com/g/2005#";
+
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(256);
+
+    GoogleScriptWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes an add for a card only the phone has.
+     */
+    void add(VCard card) throws IOException {
+        line.setLength(0);
+        line.append("--action=add");
+        appendName(card);
+        int n = 0;
+        for (Telephone telephone : card.getTelephoneNumbers()) {
+            appendPhone(++n, telephone);
+        }
+        n = 0;
+        for (Email email : card.getEmails()) {
+            if (email.getValue() != null) {
+                line.append(" \"--email").append(++n).append('=').append(clean(email.getValue()))
+                        .append(",rel:").append(REL).append(emailRel(email.getTypes())).append('"');
+            }
+        }
+        out.append(line).append('\n');
+    }
+
+    /**
+     * Writes an update giving a Google contact its own numbers plus the ones
+     * only the phone has. The phone list is replaced as a whole on update.
+     */
+    void addPhones(String id, VCard google, Collection<Telephone> extraPhones) throws IOException {
+        line.setLength(0);
+        line.append("--action=update --id=").append(id);
+        int n = 0;
+        for (Telephone telephone : google.getTelephoneNumbers()) {
+            appendPhone(++n, telephone);
+        }
+        for (Telephone telephone : extraPhones) {
+            appendPhone(++n, telephone);
+        }
+        out.append(line).append('\n');
+    }
+
+    private void appendName(VCard card) {
+        StructuredName name = card.getStructuredName();
+        String full = card.getFormattedName() != null ? card.getFormattedName().getValue() : null;
+        if (full == null && name != null) {
+            full = ((name.getGiven() != null ? name.getGiven() : "") + " "
+                    + (name.getFamily() != null ? name.getFamily() : "")).trim();
+        }
+        if (full == null || full.isEmpty()) {
+            return;
+        }
+        line.append(" \"--name=").append(clean(full));
+        if (name != null && name.getGiven() != null) {
+            line.append(",given:").append(clean(name.getGiven()));
+        }
+        if (name != null && name.getFamily() != null) {
+            line.append(",family:").append(clean(name.getFamily()));
+        }
+        line.append('"');
+    }
+
+    private void appendPhone(int n, Telephone telephone) {
+        if (telephone.getText() == null) {
+            return;
+        }
+        line.append(" \"--phone").append(n).append('=').append(clean(telephone.getText()))
+                .append(",rel:").append(REL).append(phoneRel(telephone.getTypes())).append('"');
+    }
+
+    private static String phoneRel(Set<TelephoneType> types) {
+        boolean fax = types.contains(TelephoneType.FAX);
+        if (types.contains(TelephoneType.CELL)) {
+            return "mobile";
+        }
+        if (types.contains(TelephoneType.HOME)) {
+            return fax ? "home_fax" : "home";
+        }
+        if (types.contains(TelephoneType.WORK)) {
+            return fax ? "work_fax" : "work";
+        }
+        if (fax) {
+            return "fax";
+        }
+        if (types.contains(TelephoneType.PAGER)) {
+            return "pager";
+        }
+        return "other";
+    }
+
+    private static String emailRel(Set<EmailType> types) {
+        if (types.contains(EmailType.HOME)) {
+            return "home";
+        }
+        if (types.contains(EmailType.WORK)) {
+            return "work";
+        }
+        return "other";
+    }
+
+    /**
+     * Element descriptions use ',' and ':' as separators and script lines
+     * are quoted with '"', so those are escaped with a backslash.
+     */
+    private static String clean(String value) {
+        String trimmed = value.trim();
+        StringBuilder escaped = null;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c == ',' || c == ':' || c == '\\' || c == '"') {
+                if (escaped == null) {
+                    escaped = new StringBuilder(trimmed.length() + 8).append(trimmed, 0, i);
+                }
+                escaped.append('\\');
+            }
+            if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped != null ? escaped.toString() : trimmed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,42 @@
+package com.freesundance.contacts.merge;
+
+import java.text.Normalizer;
+
+/**
+ * Name normalization used to match the same person written in different
+ * ways, e.g. "Jöhn  O'Neil" and "john oneil".
+ */
+public final class Names {
+
+    private Names() {
+    }
+
+    /**
+     * Lower-cases, strips accents and punctuation and collapses whitespace.
+     *
+     * @param raw the name as entered.
+     * @return the normalized name, or {@code null} if it holds no letters or
+     *         digits.
+     */
+    public static String normalize(CharSequence raw) {
+        if (raw == null) {
+            return null;
+        }
+        String folded = Normalizer.normalize(raw, Normalizer.Form.NFD);
+        StringBuilder key = new StringBuilder(folded.length());
+        boolean space = false;
+        for (int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && key.length() > 0) {
+                    key.append(' ');
+                }
+                key.append(Character.toLowerCase(c));
+                space = false;
+            } else if (Character.isWhitespace(c)) {
+                space = true;
+            }
+        }
+        return key.length() == 0 ? null : key.toString();
+    }
+}
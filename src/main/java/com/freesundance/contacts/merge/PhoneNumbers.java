@@ -0,0 +1,71 @@
+package com.freesundance.contacts.merge;
+
+/**
+ * Phone number normalization used to match the same number written in
+ * different ways: {@link #normalize} makes "+44 (0)20 7946-0018" and
+ * "00442079460018" the same, {@link #toE164} also "020 7946 0018" when the
+ * national numbers are British.
+ */
+public final class PhoneNumbers {
+
+    private PhoneNumbers() {
+    }
+
+    /**
+     * Strips everything but digits, keeping a leading + and turning a leading
+     * 00 international prefix into +. A trunk prefix written as "(0)" after
+     * the country code is dropped.
+     *
+     * @param raw the number as entered.
+     * @return the normalized number, or {@code null} if it holds fewer than
+     *         three digits.
+     */
+    public static String normalize(String raw) {
+        if (raw == null) {
+            return null;
+        }
+        StringBuilder digits = new StringBuilder(raw.length());
+        boolean international = false;
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (c == '+' && digits.length() == 0) {
+                international = true;
+            } else if (c == '(' && digits.length() > 0 && raw.startsWith("(0)", i)) {
+                i += 2;
+            }
+        }
+        if (!international && digits.length() > 2 && digits.charAt(0) == '0' && digits.charAt(1) == '0') {
+            digits.delete(0, 2);
+            international = true;
+        }
+        if (digits.length() < 3) {
+            return null;
+        }
+        return international ? digits.insert(0, '+').toString() : digits.toString();
+    }
+
+    /**
+     * Brings a number into E.164 form. Numbers without an international
+     * prefix are taken to be national numbers of the given country: a single
+     * leading trunk 0 is dropped and the country code put in front.
+     *
+     * @param raw         the number as entered.
+     * @param countryCode the country calling code for national numbers,
+     *                    e.g. "44".
+     * @return the number as + followed by up to 15 digits, or {@code null}
+     *         if it is not a usable number.
+     */
+    public static String toE164(String raw, String countryCode) {
+        String number = normalize(raw);
+        if (number == null) {
+            return null;
+        }
+        if (number.charAt(0) != '+') {
+            int start = number.charAt(0) == '0' ? 1 : 0;
+            number = "+" + countryCode + number.substring(start);
+        }
+        return number.length() > 16 ? null : number;
+    }
+}
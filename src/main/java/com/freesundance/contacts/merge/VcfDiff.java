@@ -0,0 +1,267 @@
+package com.freesundance.contacts.merge;
+
+import com.freesundance.contacts.vcf.VcfSource;
+import ezvcard.VCard;
+import ezvcard.VCardVersion;
+import ezvcard.io.text.VCardWriter;
+import ezvcard.property.Telephone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a Google VCF export with a phone VCF export.
+ * <p/>
+ * Google is the master copy. The Google export is indexed by UID, by every
+ * phone number in E.164 form and by normalized name, and each phone card is
+ * matched against those hash indexes in turn, so both files are read in
+ * linear time. Two files are produced:
+ * <ul>
+ * <li>a --script for ContactsExample adding the contacts only the phone has
+ * and the numbers only the phone knows for matched contacts;</li>
+ * <li>a VCF upload for the phone holding every Google contact plus the
+ * phone-only contacts, which replaces the phone's address book.</li>
+ * </ul>
+ * Phone cards whose UID refers to a Google contact that no longer exists were
+ * deleted in Google and are left out of the upload. Numbers without an
+ * international prefix are taken to belong to the country given, so the
+ * phone's "07700 900123" matches Google's "+44 7700 900123".
+ */
+public class VcfDiff {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VcfDiff.class);
+
+    private static final String GOOGLE_ID_MARKER = "google.com/m8/feeds";
+
+    private static final String DEFAULT_COUNTRY_CODE = "44";
+
+    /**
+     * Counts of the changes found.
+     */
+    public static class Summary {
+        private int googleInserts;
+        private int googleUpdates;
+        private int phoneInserts;
+        private int phoneUpdates;
+        private int phoneDeletes;
+        private int unchanged;
+
+        public int getGoogleInserts() {
+            return googleInserts;
+        }
+
+        public int getGoogleUpdates() {
+            return googleUpdates;
+        }
+
+        public int getPhoneInserts() {
+            return phoneInserts;
+        }
+
+        public int getPhoneUpdates() {
+            return phoneUpdates;
+        }
+
+        public int getPhoneDeletes() {
+            return phoneDeletes;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return "google: " + googleInserts + " inserts, " + googleUpdates + " updates, 0 deletes; "
+                    + "phone: " + phoneInserts + " inserts, " + phoneUpdates + " updates, "
+                    + phoneDeletes + " deletes; " + unchanged + " unchanged";
+        }
+    }
+
+    /**
+     * What is kept of a Google card between the passes.
+     */
+    private static final class GoogleRecord {
+        final CardKey key;
+        boolean matched;
+        List<Telephone> extraPhones;
+
+        GoogleRecord(CardKey key) {
+            this.key = key;
+        }
+    }
+
+    private final List<GoogleRecord> records = new ArrayList<>();
+    private final Map<String, GoogleRecord> byUid = new HashMap<>();
+    private final Map<String, GoogleRecord> byPhone = new HashMap<>();
+    private final Map<String, GoogleRecord> byName = new HashMap<>();
+    private final String countryCode;
+
+    /**
+     * Takes national numbers to be British.
+     */
+    public VcfDiff() {
+        this(DEFAULT_COUNTRY_CODE);
+    }
+
+    /**
+     * @param countryCode the country calling code national numbers belong
+     *                    to, e.g. "44".
+     */
+    public VcfDiff(String countryCode) {
+        if (countryCode == null || !countryCode.matches("[1-9][0-9]{0,2}")) {
+            throw new IllegalArgumentException("illegal country code: " + countryCode);
+        }
+        this.countryCode = countryCode;
+    }
+
+    /**
+     * Runs the diff.
+     *
+     * @param googleVcf    the Google export.
+     * @param phoneVcf     the phone export.
+     * @param googleScript the script to write for Google.
+     * @param phoneUpload  the VCF to write for the phone.
+     * @return the counts of changes.
+     */
+    public Summary diff(Path googleVcf, Path phoneVcf, Path googleScript, Path phoneUpload)
+            throws IOException {
+        Summary summary = new Summary();
+        index(googleVcf);
+        try (GoogleScriptWriter script = new GoogleScriptWriter(
+                Files.newBufferedWriter(googleScript, StandardCharsets.UTF_8));
+             VCardWriter upload = new VCardWriter(
+                     Files.newBufferedWriter(phoneUpload, StandardCharsets.UTF_8), VCardVersion.V3_0)) {
+            matchPhone(phoneVcf, script, upload, summary);
+            writeGoogle(googleVcf, script, upload, summary);
+        }
+        LOG.info("{}", summary);
+        return summary;
+    }
+
+    private void index(Path googleVcf) throws IOException {
+        try (VcfSource google = VcfSource.open(googleVcf)) {
+            for (VCard card : google) {
+                GoogleRecord record = new GoogleRecord(CardKey.of(card, countryCode));
+                records.add(record);
+                if (record.key.getUid() != null) {
+                    byUid.put(record.key.getUid(), record);
+                }
+                for (String phone : record.key.getPhones()) {
+                    byPhone.putIfAbsent(phone, record);
+                }
+                if (record.key.getName() != null) {
+                    byName.putIfAbsent(record.key.getName(), record);
+                }
+            }
+        }
+    }
+
+    private void matchPhone(Path phoneVcf, GoogleScriptWriter script, VCardWriter upload, Summary summary)
+            throws IOException {
+        try (VcfSource phone = VcfSource.open(phoneVcf)) {
+            for (VCard card : phone) {
+                CardKey key = CardKey.of(card, countryCode);
+                GoogleRecord record = null;
+                if (key.getUid() != null) {
+                    record = byUid.get(key.getUid());
+                    if (record == null && key.getUid().contains(GOOGLE_ID_MARKER)) {
+                        // came from Google once, gone there now
+                        summary.phoneDeletes++;
+                        continue;
+                    }
+                }
+                for (int i = 0; record == null && i < key.getPhones().length; i++) {
+                    record = byPhone.get(key.getPhones()[i]);
+                }
+                if (record == null && key.getName() != null) {
+                    record = byName.get(key.getName());
+                }
+
+                if (record == null) {
+                    summary.googleInserts++;
+                    script.add(card);
+                    upload.write(card);
+                } else if (record.matched) {
+                    // a second phone card for the same Google contact
+                    summary.phoneDeletes++;
+                } else {
+                    record.matched = true;
+                    if (record.key.getContentHash() == key.getContentHash()) {
+                        summary.unchanged++;
+                    } else {
+                        summary.phoneUpdates++;
+                    }
+                    record.extraPhones = extraPhones(card, record.key);
+                }
+            }
+        }
+    }
+
+    private List<Telephone> extraPhones(VCard card, CardKey googleKey) {
+        List<Telephone> extra = null;
+        for (Telephone telephone : card.getTelephoneNumbers()) {
+            String number = PhoneNumbers.toE164(telephone.getText(), countryCode);
+            if (number != null && !contains(googleKey.getPhones(), number)) {
+                if (extra == null) {
+                    extra = new ArrayList<>(2);
+                }
+                extra.add(telephone);
+            }
+        }
+        return extra;
+    }
+
+    private static boolean contains(String[] phones, String phone) {
+        for (String candidate : phones) {
+            if (candidate.equals(phone)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeGoogle(Path googleVcf, GoogleScriptWriter script, VCardWriter upload, Summary summary)
+            throws IOException {
+        try (VcfSource google = VcfSource.open(googleVcf)) {
+            int i = 0;
+            for (VCard card : google) {
+                GoogleRecord record = records.get(i++);
+                upload.write(card);
+                if (!record.matched) {
+                    summary.phoneInserts++;
+                } else if (record.extraPhones != null && record.key.getUid() != null) {
+                    summary.googleUpdates++;
+                    script.addPhones(record.key.getUid(), card, record.extraPhones);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the diff from the command line.
+     *
+     * @param args the Google VCF, the phone VCF, the output directory and
+     *             optionally the country code of national numbers.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("Usage: vcf_diff <google.vcf> <phone.vcf> <output dir> [<country code>]");
+        } else {
+            Path outputDir = Files.createDirectories(Paths.get(args[2]));
+            VcfDiff vcfDiff = args.length == 4 ? new VcfDiff(args[3]) : new VcfDiff();
+            Summary summary = vcfDiff.diff(Paths.get(args[0]), Paths.get(args[1]),
+                    outputDir.resolve("google-crud.script"), outputDir.resolve("phone-upload.vcf"));
+            System.out.println(summary);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.freesundance.contacts.vcf;
+
+import com.freesundance.contacts.google.ElementHelper;
+import com.google.gdata.data.TextContent;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.contacts.Website;
+import com.google.gdata.data.extensions.Email;
+import com.google.gdata.data.extensions.Name;
+import com.google.gdata.data.extensions.Organization;
+import com.google.gdata.data.extensions.PhoneNumber;
+import com.google.gdata.data.extensions.StructuredPostalAddress;
+import ezvcard.VCard;
+import ezvcard.parameter.AddressType;
+import ezvcard.parameter.EmailType;
+import ezvcard.parameter.TelephoneType;
+import ezvcard.property.Address;
+import ezvcard.property.Birthday;
+import ezvcard.property.Note;
+import ezvcard.property.StructuredName;
+import ezvcard.property.Telephone;
+import ezvcard.property.Title;
+import ezvcard.property.Uid;
+import ezvcard.property.Url;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maps Google contacts to vCards and back.
+ * <p/>
+ * Covers the fields {@code ElementHelper} handles that have a vCard
+ * counterpart: name, nickname, phones, emails, postal addresses,
+ * organizations, birthday, websites and notes. The contact id is kept as the
+ * card's UID so a card can be traced back to its Google entry. Cards are
+ * turned into contacts through the same element descriptions the command
+ * line takes, so both paths build contacts the same way.
+ */
+public class ContactVCardMapper {
+
+    private static final String REL_PREFIX = "http://schemas.google.com/g/2005#";
+    private static final String OTHER = REL_PREFIX + "other";
+
+    /**
+     * Converts a contact to a vCard.
+     *
+     * @param contact the contact.
+     * @return the card.
+     */
+    public VCard toVCard(ContactEntry contact) {
+        VCard card = new VCard();
+        if (contact.getId() != null) {
+            card.setUid(new Uid(contact.getId()));
+        }
+        mapName(contact, card);
+        if (contact.hasNickname()) {
+            card.setNickname(contact.getNickname().getValue());
+        }
+        for (PhoneNumber phone : contact.getPhoneNumbers()) {
+            card.addTelephoneNumber(phone.getPhoneNumber(), telephoneTypes(phone));
+        }
+        for (Email email : contact.getEmailAddresses()) {
+            if (email.getPrimary()) {
+                card.addEmail(email.getAddress(), emailType(email.getRel()), EmailType.PREF);
+            } else {
+                card.addEmail(email.getAddress(), emailType(email.getRel()));
+            }
+        }
+        for (StructuredPostalAddress postal : contact.getStructuredPostalAddresses()) {
+            card.addAddress(toAddress(postal));
+        }
+        boolean titled = false;
+        for (Organization organization : contact.getOrganizations()) {
+            titled |= organization.hasOrgName() && organization.hasOrgTitle();
+        }
+        List<String> looseTitles = new ArrayList<>();
+        for (Organization organization : contact.getOrganizations()) {
+            if (!organization.hasOrgName()) {
+                if (organization.hasOrgTitle()) {
+                    looseTitles.add(organization.getOrgTitle().getValue());
+                }
+                continue;
+            }
+            if (organization.hasOrgDepartment()) {
+                card.addOrganization(organization.getOrgName().getValue(),
+                        organization.getOrgDepartment().getValue());
+            } else {
+                card.addOrganization(organization.getOrgName().getValue());
+            }
+            if (titled) {
+                // one title per organization, in the same order, so they pair up again
+                card.addTitle(organization.hasOrgTitle() ? organization.getOrgTitle().getValue() : "");
+            }
+        }
+        for (String title : looseTitles) {
+            card.addTitle(title);
+        }
+        if (contact.hasBirthday()) {
+            Birthday birthday = toBirthday(contact.getBirthday().getWhen());
+            if (birthday != null) {
+                card.setBirthday(birthday);
+            }
+        }
+        for (Website website : contact.getWebsites()) {
+            card.addUrl(website.getHref());
+        }
+        if (contact.getContent() instanceof TextContent && contact.getTextContent().getContent() != null) {
+            String notes = contact.getTextContent().getContent().getPlainText();
+            if (notes != null && !notes.isEmpty()) {
+                card.addNote(notes);
+            }
+        }
+        return card;
+    }
+
+    /**
+     * Converts a vCard to a new contact.
+     *
+     * @param card the card.
+     * @return the contact, without id.
+     */
+    public ContactEntry toContact(VCard card) {
+        ContactEntry contact = new ContactEntry();
+        ElementHelper.buildContact(contact, toElements(card));
+        return contact;
+    }
+
+    /**
+     * Describes a vCard as element descriptions in the form
+     * {@link ElementHelper#buildContact} takes, e.g.
+     * {@code --phone1=020 7946 0018,rel:http://schemas.google.com/g/2005#mobile}.
+     * Every phone, email and address gets a rel, as Google requires one.
+     *
+     * @param card the card.
+     * @return the element descriptions.
+     */
+    public List<String> toElements(VCard card) {
+        List<String> elements = new ArrayList<>();
+        StringBuilder element = new StringBuilder(128);
+        StructuredName structuredName = card.getStructuredName();
+        String formatted = card.getFormattedName() != null ? card.getFormattedName().getValue() : null;
+        if (isEmpty(formatted) && structuredName != null) {
+            formatted = join(structuredName.getGiven(), structuredName.getFamily());
+        }
+        if (!isEmpty(formatted)) {
+            start(element, "name", 0, formatted.trim());
+            if (structuredName != null) {
+                property(element, "given", structuredName.getGiven());
+                property(element, "family", structuredName.getFamily());
+                property(element, "additional", first(structuredName.getAdditional()));
+                property(element, "prefix", first(structuredName.getPrefixes()));
+                property(element, "suffix", first(structuredName.getSuffixes()));
+            }
+            elements.add(element.toString());
+        }
+        if (card.getNickname() != null && !isEmpty(first(card.getNickname().getValues()))) {
+            elements.add(start(element, "nickname", 0, first(card.getNickname().getValues())).toString());
+        }
+        int n = 0;
+        for (Telephone telephone : card.getTelephoneNumbers()) {
+            if (!isEmpty(telephone.getText())) {
+                start(element, "phone", ++n, telephone.getText());
+                property(element, "rel", REL_PREFIX + phoneRel(telephone.getTypes()));
+                primary(element, telephone.getTypes().contains(TelephoneType.PREF));
+                elements.add(element.toString());
+            }
+        }
+        n = 0;
+        for (ezvcard.property.Email email : card.getEmails()) {
+            if (!isEmpty(email.getValue())) {
+                start(element, "email", ++n, email.getValue().trim());
+                Set<EmailType> types = email.getTypes();
+                property(element, "rel", types.contains(EmailType.HOME) ? REL_PREFIX + "home"
+                        : types.contains(EmailType.WORK) ? REL_PREFIX + "work" : OTHER);
+                primary(element, types.contains(EmailType.PREF));
+                elements.add(element.toString());
+            }
+        }
+        n = 0;
+        for (Address address : card.getAddresses()) {
+            Set<AddressType> types = address.getTypes();
+            start(element, "postal", ++n, "");
+            property(element, "rel", types.contains(AddressType.HOME) ? REL_PREFIX + "home"
+                    : types.contains(AddressType.WORK) ? REL_PREFIX + "work" : OTHER);
+            property(element, "street", address.getStreetAddress());
+            property(element, "pobox", address.getPoBox());
+            property(element, "neighborhood", address.getExtendedAddress());
+            property(element, "city", address.getLocality());
+            property(element, "region", address.getRegion());
+            property(element, "postcode", address.getPostalCode());
+            property(element, "country", address.getCountry());
+            property(element, "formatted", address.getLabel());
+            primary(element, types.contains(AddressType.PREF));
+            elements.add(element.toString());
+        }
+        n = 0;
+        List<Title> titles = card.getTitles();
+        for (int i = 0; i < card.getOrganizations().size(); i++) {
+            List<String> values = card.getOrganizations().get(i).getValues();
+            if (!isEmpty(first(values))) {
+                start(element, "organization", ++n, values.get(0));
+                property(element, "rel", REL_PREFIX + "work");
+                property(element, "department", values.size() > 1 ? values.get(1) : null);
+                // titles are written in the order of their organizations
+                property(element, "title", i < titles.size() ? titles.get(i).getValue() : null);
+                elements.add(element.toString());
+            }
+        }
+        String birthday = fromBirthday(card.getBirthday());
+        if (birthday != null) {
+            elements.add(start(element, "birthday", 0, birthday).toString());
+        }
+        n = 0;
+        for (Url url : card.getUrls()) {
+            if (!isEmpty(url.getValue())) {
+                start(element, "website", ++n, url.getValue());
+                property(element, "rel", "other");
+                elements.add(element.toString());
+            }
+        }
+        StringBuilder notes = new StringBuilder();
+        for (Note note : card.getNotes()) {
+            if (!isEmpty(note.getValue())) {
+                notes.append(notes.length() > 0 ? "\n" : "").append(note.getValue());
+            }
+        }
+        if (notes.length() > 0) {
+            elements.add(start(element, "notes", 0, notes.toString()).toString());
+        }
+        return elements;
+    }
+
+    private static StringBuilder start(StringBuilder element, String name, int number, String value) {
+        element.setLength(0);
+        element.append("--").append(name);
+        if (number > 0) {
+            element.append(number);
+        }
+        element.append('=');
+        escape(element, value);
+        return element;
+    }
+
+    private static void property(StringBuilder element, String name, String value) {
+        if (!isEmpty(value)) {
+            element.append(',').append(name).append(':');
+            escape(element, value);
+        }
+    }
+
+    private static void primary(StringBuilder element, boolean primary) {
+        if (primary) {
+            element.append(",primary:true");
+        }
+    }
+
+    /**
+     * Escapes the characters the element parser splits on.
+     */
+    private static void escape(StringBuilder element, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == ':' || c == '\\') {
+                element.append('\\');
+            }
+            element.append(c);
+        }
+    }
+
+    private static String phoneRel(Set<TelephoneType> types) {
+        boolean fax = types.contains(TelephoneType.FAX);
+        if (types.contains(TelephoneType.CELL)) {
+            return "mobile";
+        } else if (fax && types.contains(TelephoneType.HOME)) {
+            return "home_fax";
+        } else if (fax && types.contains(TelephoneType.WORK)) {
+            return "work_fax";
+        } else if (fax) {
+            return "other_fax";
+        } else if (types.contains(TelephoneType.PAGER)) {
+            return "pager";
+        } else if (types.contains(TelephoneType.CAR)) {
+            return "car";
+        } else if (types.contains(TelephoneType.ISDN)) {
+            return "isdn";
+        } else if (types.contains(TelephoneType.WORK)) {
+            return "work";
+        } else if (types.contains(TelephoneType.HOME)) {
+            return "home";
+        }
+        return "other";
+    }
+
+    /**
+     * The inverse of {@link #toBirthday}: a full date or a text birthday
+     * already in one of the two forms Google takes.
+     */
+    private static String fromBirthday(Birthday birthday) {
+        if (birthday == null) {
+            return null;
+        }
+        if (birthday.getDate() != null) {
+            return new SimpleDateFormat("yyyy-MM-dd").format(birthday.getDate());
+        }
+        String text = birthday.getText();
+        return text != null && text.matches("(\\d{4}|-)-\\d{2}-\\d{2}") ? text : null;
+    }
+
+    private static String join(String given, String family) {
+        StringBuilder name = new StringBuilder();
+        for (String part : new String[]{given, family}) {
+            if (!isEmpty(part)) {
+                name.append(name.length() > 0 ? " " : "").append(part.trim());
+            }
+        }
+        return name.toString();
+    }
+
+    private static String first(List<String> values) {
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    private static void mapName(ContactEntry contact, VCard card) {
+        String formatted = null;
+        if (contact.hasName()) {
+            Name name = contact.getName();
+            StructuredName structuredName = new StructuredName();
+            if (name.hasGivenName()) {
+                structuredName.setGiven(name.getGivenName().getValue());
+            }
+            if (name.hasFamilyName()) {
+                structuredName.setFamily(name.getFamilyName().getValue());
+            }
+            if (name.hasAdditionalName()) {
+                structuredName.getAdditional().add(name.getAdditionalName().getValue());
+            }
+            if (name.hasNamePrefix()) {
+                structuredName.getPrefixes().add(name.getNamePrefix().getValue());
+            }
+            if (name.hasNameSuffix()) {
+                structuredName.getSuffixes().add(name.getNameSuffix().getValue());
+            }
+            card.setStructuredName(structuredName);
+            if (name.hasFullName()) {
+                formatted = name.getFullName().getValue();
+            }
+        }
+        if (formatted == null && contact.getTitle() != null) {
+            formatted = contact.getTitle().getPlainText();
+        }
+        // FN is mandatory in vCard 3.0
+        card.setFormattedName(formatted != null ? formatted : "");
+    }
+
+    private static TelephoneType[] telephoneTypes(PhoneNumber phone) {
+        List<TelephoneType> types = new ArrayList<>(3);
+        String rel = shortRel(phone.getRel());
+        if (rel != null) {
+            switch (rel) {
+                case "mobile":
+                    types.add(TelephoneType.CELL);
+                    break;
+                case "home":
+                    types.add(TelephoneType.HOME);
+                    break;
+                case "work":
+                case "company_main":
+                    types.add(TelephoneType.WORK);
+                    break;
+                case "home_fax":
+                    types.add(TelephoneType.HOME);
+                    types.add(TelephoneType.FAX);
+                    break;
+                case "work_fax":
+                    types.add(TelephoneType.WORK);
+                    types.add(TelephoneType.FAX);
+                    break;
+                case "fax":
+                case "other_fax":
+                    types.add(TelephoneType.FAX);
+                    break;
+                case "pager":
+                case "work_pager":
+                    types.add(TelephoneType.PAGER);
+                    break;
+                case "car":
+                    types.add(TelephoneType.CAR);
+                    break;
+                case "isdn":
+                    types.add(TelephoneType.ISDN);
+                    break;
+                default:
+                    types.add(TelephoneType.VOICE);
+            }
+        }
+        if (phone.getPrimary()) {
+            types.add(TelephoneType.PREF);
+        }
+        return types.toArray(new TelephoneType[types.size()]);
+    }
+
+    private static EmailType emailType(String rel) {
+        String shortRel = shortRel(rel);
+        if ("home".equals(shortRel)) {
+            return EmailType.HOME;
+        }
+        if ("work".equals(shortRel)) {
+            return EmailType.WORK;
+        }
+        return EmailType.INTERNET;
+    }
+
+    private static Address toAddress(StructuredPostalAddress postal) {
+        Address address = new Address();
+        if (postal.hasStreet()) {
+            address.setStreetAddress(postal.getStreet().getValue());
+        }
+        if (postal.hasPobox()) {
+            address.setPoBox(postal.getPobox().getValue());
+        }
+        if (postal.hasNeighborhood()) {
+            address.setExtendedAddress(postal.getNeighborhood().getValue());
+        }
+        if (postal.hasCity()) {
+            address.setLocality(postal.getCity().getValue());
+        }
+        if (postal.hasRegion()) {
+            address.setRegion(postal.getRegion().getValue());
+        }
+        if (postal.hasPostcode()) {
+            address.setPostalCode(postal.getPostcode().getValue());
+        }
+        if (postal.hasCountry()) {
+            address.setCountry(postal.getCountry().getValue());
+        }
+        if (postal.hasFormattedAddress()) {
+            address.setLabel(postal.getFormattedAddress().getValue());
+        }
+        String rel = shortRel(postal.getRel());
+        if ("home".equals(rel)) {
+            address.addType(AddressType.HOME);
+        } else if ("work".equals(rel)) {
+            address.addType(AddressType.WORK);
+        }
+        if (postal.getPrimary()) {
+            address.addType(AddressType.PREF);
+        }
+        return address;
+    }
+
+    /**
+     * Google birthdays are YYYY-MM-DD, or --MM-DD when the year is unknown.
+     * The latter has no vCard 3.0 date form and is kept as text.
+     */
+    private static Birthday toBirthday(String when) {
+        if (when == null || when.isEmpty()) {
+            return null;
+        }
+        if (when.startsWith("--")) {
+            return new Birthday(when);
+        }
+        try {
+            return new Birthday(new SimpleDateFormat("yyyy-MM-dd").parse(when));
+        } catch (ParseException e) {
+            return new Birthday(when);
+        }
+    }
+
+    static String shortRel(String rel) {
+        if (rel == null) {
+            return null;
+        }
+        return rel.startsWith(REL_PREFIX) ? rel.substring(REL_PREFIX.length()) : rel;
+    }
+}
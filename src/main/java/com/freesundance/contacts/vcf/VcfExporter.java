@@ -0,0 +1,92 @@
+package com.freesundance.contacts.vcf;
+
+import com.google.gdata.data.contacts.ContactEntry;
+import ezvcard.VCardVersion;
+import ezvcard.io.text.VCardWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes Google contacts to a VCF file as they arrive.
+ * <p/>
+ * Every contact is mapped and written to a buffered writer over a
+ * {@link FileChannel} straight away, so an export holds one contact at a time
+ * no matter how large the address book is.
+ */
+public class VcfExporter implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VcfExporter.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final ContactVCardMapper mapper;
+    private final VCardWriter writer;
+    private long cards;
+
+    /**
+     * @param file   the VCF file, replaced if it exists.
+     * @param mapper maps contacts to cards.
+     */
+    public VcfExporter(Path file, ContactVCardMapper mapper) throws IOException {
+        this.file = file;
+        this.mapper = mapper;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        Writer out = new BufferedWriter(
+                Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+        this.writer = new VCardWriter(out, VCardVersion.V3_0);
+    }
+
+    /**
+     * Writes one contact.
+     *
+     * @param contact the contact.
+     */
+    public void write(ContactEntry contact) throws IOException {
+        writer.write(mapper.toVCard(contact));
+        cards++;
+    }
+
+    /**
+     * Writes every contact the iterator yields.
+     *
+     * @param contacts the contacts.
+     * @return the number of contacts written.
+     */
+    public long writeAll(Iterator<ContactEntry> contacts) throws IOException {
+        long start = System.nanoTime();
+        long before = cards;
+        while (contacts.hasNext()) {
+            write(contacts.next());
+        }
+        long written = cards - before;
+        LOG.info("exported [{}] contacts to [{}] in [{}] ms", written, file,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return written;
+    }
+
+    /**
+     * @return the number of contacts written so far.
+     */
+    public long getCards() {
+        return cards;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
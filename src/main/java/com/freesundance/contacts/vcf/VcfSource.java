@@ -0,0 +1,106 @@
+package com.freesundance.contacts.vcf;
+
+import ezvcard.VCard;
+import ezvcard.io.text.VCardReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads vCards one at a time from a stream.
+ * <p/>
+ * Only the card being handed out is held in memory, so multi-hundred-MB
+ * phone backups can be processed without loading the whole file the way
+ * {@code Ezvcard.parse(String).all()} does. The reading rate is logged when
+ * the source is closed.
+ */
+public class VcfSource implements Iterator<VCard>, Iterable<VCard>, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VcfSource.class);
+
+    private final String name;
+    private final VCardReader reader;
+    private final long started = System.nanoTime();
+
+    private VCard next;
+    private boolean exhausted;
+    private long cards;
+
+    /**
+     * @param name a name for the source used in log messages.
+     * @param in   the stream to read, closed with the source.
+     */
+    public VcfSource(String name, InputStream in) {
+        this.name = name;
+        this.reader = new VCardReader(in);
+    }
+
+    /**
+     * Opens a VCF file.
+     *
+     * @param file the file.
+     * @return a source reading the file.
+     */
+    public static VcfSource open(Path file) throws IOException {
+        return new VcfSource(file.toString(), Files.newInputStream(file));
+    }
+
+    @Override
+    public Iterator<VCard> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !exhausted) {
+            try {
+                next = reader.readNext();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read " + name + " after " + cards + " cards", e);
+            }
+            exhausted = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public VCard next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        VCard card = next;
+        next = null;
+        cards++;
+        return card;
+    }
+
+    /**
+     * @return the number of cards handed out so far.
+     */
+    public long getCards() {
+        return cards;
+    }
+
+    /**
+     * @return the reading rate so far in cards per second.
+     */
+    public double getCardsPerSecond() {
+        long elapsed = System.nanoTime() - started;
+        return elapsed == 0 ? 0 : cards * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        LOG.info("read [{}] cards from [{}] at [{}] cards/sec", cards, name, String.format("%.1f", getCardsPerSecond()));
+    }
+}
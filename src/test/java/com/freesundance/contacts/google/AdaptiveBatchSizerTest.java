@@ -0,0 +1,67 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.util.ServiceException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveBatchSizerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test public void growsToTheMaximumWhileBatchesAreFast() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100);
+        assertEquals(25, sizer.size());
+        for (int i = 0; i < 20; i++) {
+            sizer.onResponse(sizer.size(), FAST, 0);
+        }
+        assertEquals(100, sizer.size());
+    }
+
+    @Test public void partialBatchesDoNotGrowTheSize() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 100, 1000);
+        sizer.onResponse(3, FAST, 0);
+        assertEquals(10, sizer.size());
+    }
+
+    @Test public void shrinksInProportionToSlowBatches() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(80, 100, 1000);
+        sizer.onResponse(80, TimeUnit.MILLISECONDS.toNanos(1250), 0);
+        assertEquals(64, sizer.size());
+        sizer.onResponse(64, TimeUnit.SECONDS.toNanos(60), 0);
+        assertEquals(32, sizer.size());
+    }
+
+    @Test public void halvesOnServerErrorsAndFailures() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(80, 100, 1000);
+        sizer.onResponse(80, FAST, 10);
+        assertEquals(40, sizer.size());
+        sizer.onFailure(40);
+        assertEquals(20, sizer.size());
+        for (int i = 0; i < 10; i++) {
+            sizer.onFailure(sizer.size());
+        }
+        assertEquals(1, sizer.size());
+    }
+
+    @Test public void onlySplitsBatchesRejectedAsTooLarge() {
+        ServiceException tooLarge = new ServiceException("too large");
+        tooLarge.setHttpErrorCodeOverride(413);
+        ServiceException badGateway = new ServiceException("bad gateway");
+        badGateway.setHttpErrorCodeOverride(502);
+        ServiceException conflict = new ServiceException("conflict");
+        conflict.setHttpErrorCodeOverride(409);
+
+        assertTrue(AdaptiveBatchSizer.isSplittable(tooLarge));
+        assertFalse(AdaptiveBatchSizer.isSplittable(badGateway));
+        assertFalse(AdaptiveBatchSizer.isSplittable(new SocketTimeoutException()));
+        assertFalse(AdaptiveBatchSizer.isSplittable(conflict));
+        assertFalse(AdaptiveBatchSizer.isSplittable(new IOException("reset")));
+    }
+}
@@ -0,0 +1,72 @@
+package com.freesundance.contacts.google;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkUploadJournalTest {
+
+    @Test public void replaysAcknowledgedAndInDoubtKeys() throws IOException {
+        Path file = Files.createTempFile("journal", ".log");
+        try {
+            try (BulkUploadJournal journal = BulkUploadJournal.open(file)) {
+                journal.plan(Arrays.asList("a", "b", "c"));
+                journal.ack("a", "http://id/a", "\"etag-a\"");
+                journal.ack("c", "http://id/c", null);
+            }
+            try (BulkUploadJournal journal = BulkUploadJournal.open(file)) {
+                assertTrue(journal.isAcked("a"));
+                assertEquals("\"etag-a\"", journal.getAck("a").getEtag());
+                assertEquals("http://id/c", journal.getAck("c").getId());
+                assertFalse(journal.isAcked("b"));
+                assertEquals(2, journal.ackedCount());
+                assertEquals(1, journal.inDoubt().size());
+                assertTrue(journal.inDoubt().containsKey("b"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void dropsATornTailAndKeepsAppending() throws IOException {
+        Path file = Files.createTempFile("journal", ".log");
+        try {
+            try (BulkUploadJournal journal = BulkUploadJournal.open(file)) {
+                journal.plan(Arrays.asList("a", "b"));
+                journal.ack("a", "http://id/a", "\"etag-a\"");
+            }
+            Files.write(file, "ACK\tb\thttp://id/b\t\"et".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+            try (BulkUploadJournal journal = BulkUploadJournal.open(file)) {
+                assertFalse(journal.isAcked("b"));
+                journal.ack("b", "http://id/b", "\"etag-b\"");
+            }
+            try (BulkUploadJournal journal = BulkUploadJournal.open(file)) {
+                assertTrue(journal.isAcked("b"));
+                assertTrue(journal.inDoubt().isEmpty());
+            }
+            assertEquals(4, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeysThatWouldBreakARecord() throws IOException {
+        Path file = Files.createTempFile("journal", ".log");
+        try (BulkUploadJournal journal = BulkUploadJournal.open(file)) {
+            journal.plan(Arrays.asList("a\tb"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.util.ServiceException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientMetricsTest {
+
+    @Test public void percentilesStayWithinAQuarterOfTheValue() {
+        ClientMetrics metrics = new ClientMetrics(false);
+        for (int i = 1; i <= 1000; i++) {
+            metrics.record(ClientMetrics.Operation.GET_ENTRY, TimeUnit.MILLISECONDS.toNanos(i), 0);
+        }
+        ClientMetrics.OperationMetricsMBean entry = metrics.get(ClientMetrics.Operation.GET_ENTRY);
+        assertEquals(1000, entry.getCount());
+        assertEquals(0, entry.getErrors());
+        assertTrue(entry.getP50Millis() >= 500 && entry.getP50Millis() <= 625);
+        assertTrue(entry.getP99Millis() >= 990 && entry.getP99Millis() <= 1000);
+        assertEquals(1000.0, entry.getMaxMillis(), 0.001);
+        assertEquals(500.5, entry.getMeanMillis(), 0.001);
+    }
+
+    @Test public void bucketBoundsCoverEveryValue() {
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = ClientMetrics.OperationMetrics.bucket(micros);
+            assertTrue(micros <= ClientMetrics.OperationMetrics.upperBound(bucket));
+            assertTrue(bucket == 0 || micros > ClientMetrics.OperationMetrics.upperBound(bucket - 1));
+        }
+    }
+
+    @Test public void countsErrorsByStatus() throws Exception {
+        ClientMetrics metrics = new ClientMetrics(false);
+        ServiceException unavailable = new ServiceException("busy");
+        unavailable.setHttpErrorCodeOverride(503);
+        try {
+            metrics.time(ClientMetrics.Operation.BATCH, () -> {
+                throw unavailable;
+            });
+            fail("expected the exception to pass through");
+        } catch (ServiceException e) {
+            assertEquals(unavailable, e);
+        }
+        try {
+            metrics.time(ClientMetrics.Operation.BATCH, () -> {
+                throw new IOException("reset");
+            });
+            fail("expected the exception to pass through");
+        } catch (IOException expected) {
+            // recorded as an error without a status
+        }
+        assertEquals("ok", metrics.time(ClientMetrics.Operation.BATCH, () -> "ok"));
+
+        ClientMetrics.OperationMetricsMBean batch = metrics.get(ClientMetrics.Operation.BATCH);
+        assertEquals(3, batch.getCount());
+        assertEquals(2, batch.getErrors());
+        assertEquals(Long.valueOf(1), batch.getErrorsByStatus().get(503));
+        assertEquals(Long.valueOf(1), batch.getErrorsByStatus().get(-1));
+        assertEquals(Collections.emptyMap(), metrics.get(ClientMetrics.Operation.PHOTO).getErrorsByStatus());
+    }
+}
@@ -0,0 +1,165 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.batch.BatchInterruptedException;
+import com.google.gdata.client.contacts.ContactsService;
+import com.google.gdata.data.IFeed;
+import com.google.gdata.data.batch.BatchInterrupted;
+import com.google.gdata.data.batch.BatchStatus;
+import com.google.gdata.data.batch.BatchUtils;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.contacts.ContactFeed;
+import com.google.gdata.util.ServiceException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContactBatchTest {
+
+    /**
+     * Answers every operation with 201, up to {@code answered} operations per
+     * batch; a longer batch is interrupted after them, or rejected as too
+     * large when {@code tooLarge} is set. Every batch fails with
+     * {@code failure} once it is set.
+     */
+    private static class StubService extends ContactsService {
+        private final int answered;
+        private final boolean tooLarge;
+        private final List<Integer> sent = new ArrayList<>();
+        private IOException failure;
+
+        StubService(int answered, boolean tooLarge) {
+            super("test");
+            this.answered = answered;
+            this.tooLarge = tooLarge;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <F extends IFeed> F batch(URL feedUrl, F inputFeed) throws IOException, ServiceException {
+            List<ContactEntry> requests = ((ContactFeed) inputFeed).getEntries();
+            sent.add(requests.size());
+            if (failure != null) {
+                throw failure;
+            }
+            if (tooLarge && requests.size() > answered) {
+                ServiceException e = new ServiceException("too large");
+                e.setHttpErrorCodeOverride(413);
+                throw e;
+            }
+            ContactFeed response = new ContactFeed();
+            for (ContactEntry request : requests.subList(0, Math.min(answered, requests.size()))) {
+                ContactEntry entry = new ContactEntry();
+                BatchUtils.setBatchId(entry, BatchUtils.getBatchId(request));
+                BatchStatus status = new BatchStatus();
+                status.setCode(201);
+                status.setReason("Created");
+                entry.addExtension(status);
+                entry.setId("id-" + BatchUtils.getBatchId(request));
+                response.getEntries().add(entry);
+            }
+            if (requests.size() > answered) {
+                throw new BatchInterruptedException(response, new BatchInterrupted("server restart",
+                        requests.size(), answered, 0));
+            }
+            return (F) response;
+        }
+    }
+
+    private static ContactBatch batch(StubService service) throws Exception {
+        return new ContactBatch(service, new URL("https://example.com/m8/feeds/contacts/default/full/batch"),
+                new AdaptiveBatchSizer(ContactBatch.MAX_BATCH_SIZE, ContactBatch.MAX_BATCH_SIZE, 1000));
+    }
+
+    @Test public void answersEveryOperation() throws Exception {
+        StubService service = new StubService(ContactBatch.MAX_BATCH_SIZE, false);
+        ContactBatch batch = batch(service);
+        for (int i = 0; i < 5; i++) {
+            batch.insert(new ContactEntry());
+        }
+        List<ContactBatch.Outcome> outcomes = batch.flush();
+        assertEquals(5, outcomes.size());
+        for (ContactBatch.Outcome outcome : outcomes) {
+            assertTrue(outcome.toString(), outcome.isSuccess());
+        }
+        assertEquals(0, batch.pending());
+    }
+
+    @Test public void keepsTheAnswersOfAnInterruptedBatchAndDoesNotResendTheRest() throws Exception {
+        StubService service = new StubService(2, false);
+        ContactBatch batch = batch(service);
+        List<String> batchIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batchIds.add(batch.insert(new ContactEntry()));
+        }
+        List<ContactBatch.Outcome> outcomes = batch.flush();
+
+        assertEquals(5, outcomes.size());
+        int succeeded = 0;
+        for (ContactBatch.Outcome outcome : outcomes) {
+            if (outcome.isSuccess()) {
+                succeeded++;
+                assertEquals("id-" + outcome.getBatchId(), outcome.getId());
+            } else {
+                assertEquals(-1, outcome.getCode());
+                assertTrue(outcome.getReason(), outcome.getReason().contains("server restart"));
+            }
+            assertTrue(batchIds.contains(outcome.getBatchId()));
+        }
+        assertEquals(2, succeeded);
+        assertEquals(0, batch.pending());
+
+        assertTrue(batch.flush().isEmpty());
+        assertEquals(1, service.sent.size());
+    }
+
+    @Test public void reportsAFailedBatchAsNotProcessedAndDoesNotResendIt() throws Exception {
+        StubService service = new StubService(ContactBatch.MAX_BATCH_SIZE, false);
+        ContactBatch batch = batch(service);
+        batch.insert(new ContactEntry());
+        batch.insert(new ContactEntry());
+        batch.flush();
+        service.failure = new IOException("read timed out");
+        for (int i = 0; i < 3; i++) {
+            batch.insert(new ContactEntry());
+        }
+        try {
+            batch.flush();
+            fail("the failure should be passed on");
+        } catch (IOException e) {
+            assertEquals("read timed out", e.getMessage());
+        }
+        assertEquals(0, batch.pending());
+
+        List<ContactBatch.Outcome> outcomes = batch.takeOutcomes();
+        assertEquals(3, outcomes.size());
+        for (ContactBatch.Outcome outcome : outcomes) {
+            assertEquals(-1, outcome.getCode());
+            assertTrue(outcome.getReason(), outcome.getReason().contains("read timed out"));
+        }
+        assertTrue(batch.flush().isEmpty());
+        assertEquals(2, service.sent.size());
+    }
+
+    @Test public void splitsBatchesRejectedAsTooLarge() throws Exception {
+        StubService service = new StubService(3, true);
+        ContactBatch batch = batch(service);
+        for (int i = 0; i < 10; i++) {
+            batch.insert(new ContactEntry());
+        }
+        List<ContactBatch.Outcome> outcomes = batch.flush();
+        assertEquals(10, outcomes.size());
+        for (ContactBatch.Outcome outcome : outcomes) {
+            assertTrue(outcome.toString(), outcome.isSuccess());
+        }
+        assertFalse(service.sent.isEmpty());
+        assertEquals(Integer.valueOf(10), service.sent.get(0));
+    }
+}
@@ -0,0 +1,55 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.data.contacts.ContactEntry;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContactKeyIndexTest {
+
+    private static ContactEntry contact(String... elements) {
+        ContactEntry contact = new ContactEntry();
+        ElementHelper.buildContact(contact, Arrays.asList(elements));
+        return contact;
+    }
+
+    @Test public void matchesTheSameNameAndNumberWrittenDifferently() {
+        ContactKeyIndex index = new ContactKeyIndex("44");
+        index.put(contact("--name=John O'Neil,given:John,family:O'Neil", "--phone1=+44 20 7946-0018"));
+
+        assertTrue(index.contains(contact("--name=Jöhn  ONeil,given:Jöhn,family:ONeil", "--phone1=020 7946 0018")));
+        assertFalse(index.contains(contact("--name=Jane O'Neil,given:Jane,family:O'Neil", "--phone1=020 7946 0018")));
+        assertFalse(index.contains(contact("--name=John O'Neil,given:John,family:O'Neil", "--phone1=020 7946 0019")));
+    }
+
+    @Test public void matchesOnAnySharedEmail() {
+        ContactKeyIndex index = new ContactKeyIndex("44");
+        index.put(contact("--name=Ann Lee", "--email1=ann@example.com", "--email2=lee@example.org"));
+
+        assertTrue(index.contains(contact("--name=Ann Lee", "--email1=Lee@Example.org")));
+        assertFalse(index.contains(contact("--name=Ann Lee", "--email1=ann@example.net")));
+    }
+
+    @Test public void matchesNameOnlyContactsByName() {
+        ContactKeyIndex index = new ContactKeyIndex("44");
+        index.put(contact("--name=Ann Lee", "--email1=ann@example.com"));
+
+        assertTrue(index.contains(contact("--name=ann lee")));
+        assertFalse(index.contains(contact("--name=Bob Lee")));
+    }
+
+    @Test public void contentKeysIgnoreOrderAndFormatting() {
+        ContactKeyIndex index = new ContactKeyIndex("44");
+        String key = index.contentKey(contact("--name=Ann Lee", "--phone1=020 7946 0018", "--phone2=+1 555 0100"));
+
+        assertEquals(16, key.length());
+        assertEquals(key, index.contentKey(contact("--name=ANN LEE", "--phone1=+15550100", "--phone2=02079460018")));
+        assertFalse(key.equals(index.contentKey(contact("--name=Ann Lee", "--phone1=020 7946 0018"))));
+        assertNull(index.contentKey(contact("--notes=nothing to go by")));
+    }
+}
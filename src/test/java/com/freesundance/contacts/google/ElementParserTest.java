@@ -0,0 +1,49 @@
+package com.freesundance.contacts.google;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElementParserTest {
+
+    @Test public void parsesValueAndNamedProperties() {
+        ElementParser parser = new ElementParser(
+                "John Smith,Given:John,family:Smith,rel:http://schemas.google.com/g/2005#home,primary:TRUE");
+        assertEquals("John Smith", parser.get(PropertyName.VALUE));
+        assertEquals("John", parser.get(PropertyName.GIVEN));
+        assertEquals("Smith", parser.get(PropertyName.FAMILY));
+        assertEquals("http://schemas.google.com/g/2005#home", parser.get(PropertyName.REL));
+        assertTrue(parser.is(PropertyName.PRIMARY));
+        assertFalse(parser.has(PropertyName.LABEL));
+        assertNull(parser.get(PropertyName.LABEL));
+    }
+
+    @Test public void unescapesSeparators() {
+        ElementParser parser = new ElementParser("Smith\\, John,label:a\\:b\\\\c,street:1\\, High St");
+        assertEquals("Smith, John", parser.get(PropertyName.VALUE));
+        assertEquals("a:b\\c", parser.get(PropertyName.LABEL));
+        assertEquals("1, High St", parser.get(PropertyName.STREET));
+    }
+
+    @Test public void ignoresEmptyProperties() {
+        ElementParser parser = new ElementParser("x,,label:y,");
+        assertEquals("x", parser.get(PropertyName.VALUE));
+        assertEquals("y", parser.get(PropertyName.LABEL));
+    }
+
+    @Test public void leavesAnEmptyValueWhenNoneIsGiven() {
+        assertEquals("", new ElementParser("").get(PropertyName.VALUE));
+        ElementParser parser = new ElementParser(",rel:http://schemas.google.com/g/2005#home");
+        assertEquals("", parser.get(PropertyName.VALUE));
+        assertEquals("http://schemas.google.com/g/2005#home", parser.get(PropertyName.REL));
+        assertEquals("", new ElementParser("label:").get(PropertyName.LABEL));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownProperty() {
+        new ElementParser("x,colour:red");
+    }
+}
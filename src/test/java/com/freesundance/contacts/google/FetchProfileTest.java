@@ -0,0 +1,46 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.client.Query;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FetchProfileTest {
+
+    private static final String FEED = "https://www.google.com/m8/feeds/contacts/default/";
+
+    @Test public void parsesProfileNames() {
+        assertEquals(FetchProfile.IDS_ETAGS, FetchProfile.parse("ids+etags"));
+        assertEquals(FetchProfile.NAMES_PHONES, FetchProfile.parse("Names+Phones"));
+        assertEquals(FetchProfile.FULL, FetchProfile.parse("full"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownProfiles() {
+        FetchProfile.parse("everything");
+    }
+
+    @Test public void switchesTheProjection() throws Exception {
+        assertEquals(new URL(FEED + "full"), FetchProfile.FULL.feedUrl(new URL(FEED + "thin"), "thin"));
+        assertEquals(new URL(FEED + "thin"), FetchProfile.IDS_ETAGS.feedUrl(new URL(FEED + "thin"), "thin"));
+        assertEquals(new URL(FEED + "thin"), FetchProfile.IDS_ETAGS.feedUrl(new URL(FEED + "full"), "full"));
+    }
+
+    @Test public void selectsFeedAndEntryFields() throws Exception {
+        Query query = FetchProfile.IDS_ETAGS.apply(new Query(new URL(FEED + "thin")));
+        String fields = query.getFields();
+        assertTrue(fields, fields.startsWith("title,link,updated,"));
+        assertTrue(fields, fields.endsWith(",entry(@gd:etag,id,updated,link,gd:deleted)"));
+        assertTrue(query.getUrl().toString(), query.getUrl().toString().contains("fields="));
+
+        URL entry = FetchProfile.IDS_ETAGS.entryUrl(new URL(FEED + "thin/123"));
+        assertEquals(FEED + "thin/123?fields=%40gd%3Aetag%2Cid%2Cupdated%2Clink%2Cgd%3Adeleted", entry.toString());
+
+        assertNull(FetchProfile.FULL.apply(new Query(new URL(FEED + "full"))).getFields());
+        assertEquals(new URL(FEED + "full/123"), FetchProfile.FULL.entryUrl(new URL(FEED + "full/123")));
+    }
+}
@@ -0,0 +1,49 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.extensions.PhoneNumber;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PhoneNumberIndexTest {
+
+    private static ContactEntry contact(String id, String... numbers) {
+        ContactEntry contact = new ContactEntry();
+        contact.setId(id);
+        for (String number : numbers) {
+            PhoneNumber phoneNumber = new PhoneNumber();
+            phoneNumber.setPhoneNumber(number);
+            contact.addPhoneNumber(phoneNumber);
+        }
+        return contact;
+    }
+
+    @Test public void findsNumbersWhateverTheFormat() {
+        PhoneNumberIndex index = new PhoneNumberIndex("44");
+        index.put(contact("a", "020 7946 0018", "+1 (212) 555-0100"));
+
+        assertEquals(Collections.singleton("a"), index.find("+44 20 7946-0018"));
+        assertEquals(Collections.singleton("a"), index.find("0044 2079460018"));
+        assertEquals(Collections.singleton("a"), index.find("001 212 555 0100"));
+        assertTrue(index.find("020 7946 0019").isEmpty());
+    }
+
+    @Test public void followsUpdatesAndDeletes() {
+        PhoneNumberIndex index = new PhoneNumberIndex("44");
+        index.put(contact("a", "07700 900123"));
+        index.put(contact("b", "07700 900123"));
+        assertEquals(2, index.find("+447700900123").size());
+
+        index.put(contact("a", "07700 900456"));
+        assertEquals(Collections.singleton("b"), index.find("07700 900123"));
+        assertEquals(Collections.singleton("a"), index.find("07700 900456"));
+
+        index.remove("b");
+        assertTrue(index.find("07700 900123").isEmpty());
+        assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,89 @@
+package com.freesundance.contacts.google;
+
+import com.google.gdata.util.ResourceNotFoundException;
+import com.google.gdata.util.ServiceException;
+import com.google.gdata.util.ServiceForbiddenException;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestSchedulerTest {
+
+    private static ServiceException status(int code) {
+        ServiceException e = new ServiceException("status " + code);
+        e.setHttpErrorCodeOverride(code);
+        return e;
+    }
+
+    private static RequestScheduler scheduler(ClientMetrics metrics) {
+        RequestScheduler scheduler = new RequestScheduler(metrics, 100, 1000, 8, 16);
+        scheduler.setBackoff(1, 5);
+        return scheduler;
+    }
+
+    @Test public void retriesThrottledRequestsAndSlowsDown() throws Exception {
+        ClientMetrics metrics = new ClientMetrics(false);
+        RequestScheduler scheduler = scheduler(metrics);
+        AtomicInteger attempts = new AtomicInteger();
+        String result = scheduler.execute(ClientMetrics.Operation.INSERT, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw status(503);
+            }
+            return "inserted";
+        });
+        assertEquals("inserted", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, scheduler.getRetries());
+        assertEquals(3, metrics.get(ClientMetrics.Operation.INSERT).getCount());
+        assertEquals(Long.valueOf(2), metrics.get(ClientMetrics.Operation.INSERT).getErrorsByStatus().get(503));
+        assertTrue(scheduler.getConcurrencyLimit() < 8);
+        assertTrue(scheduler.getRate() < 100);
+    }
+
+    @Test public void givesUpAfterMaxAttempts() throws Exception {
+        RequestScheduler scheduler = scheduler(new ClientMetrics(false));
+        scheduler.setMaxAttempts(3);
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            scheduler.execute(ClientMetrics.Operation.BATCH, () -> {
+                attempts.incrementAndGet();
+                throw status(429);
+            });
+            fail("expected the last failure to pass through");
+        } catch (ServiceException e) {
+            assertEquals(429, ClientMetrics.statusOf(e));
+        }
+        assertEquals(3, attempts.get());
+    }
+
+    @Test public void doesNotRetryOtherFailures() throws Exception {
+        RequestScheduler scheduler = scheduler(new ClientMetrics(false));
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            scheduler.execute(ClientMetrics.Operation.GET_ENTRY, () -> {
+                attempts.incrementAndGet();
+                throw new ResourceNotFoundException("gone");
+            });
+            fail("expected the failure to pass through");
+        } catch (ResourceNotFoundException expected) {
+            // not retried
+        }
+        assertEquals(1, attempts.get());
+        assertEquals(8, scheduler.getConcurrencyLimit());
+    }
+
+    @Test public void tellsRateLimitsFromPermissionErrors() {
+        assertFalse(RequestScheduler.isThrottled(new ServiceForbiddenException("Forbidden")));
+        assertTrue(RequestScheduler.isThrottled(new ServiceForbiddenException("Rate Limit Exceeded")));
+        ServiceException quota = new ServiceForbiddenException("Forbidden");
+        quota.setResponseBody("<errors><error><code>userRateLimitExceeded</code></error></errors>");
+        assertTrue(RequestScheduler.isThrottled(quota));
+        assertTrue(RequestScheduler.isThrottled(status(503)));
+        assertFalse(RequestScheduler.isThrottled(status(500)));
+    }
+}
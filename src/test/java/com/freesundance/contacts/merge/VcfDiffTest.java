@@ -0,0 +1,106 @@
+package com.freesundance.contacts.merge;
+
+import com.freesundance.contacts.vcf.VcfSource;
+import ezvcard.VCard;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VcfDiffTest {
+
+    private static final String BASE = "https://www.google.com/m8/feeds/contacts/me/base/";
+
+    private static final String GOOGLE = card(BASE + "1", "Smith", "John", "TEL;TYPE=CELL:+44 7700 900123")
+            + card(BASE + "2", "Jones", "Mary", "TEL;TYPE=HOME:+44 20 7946 0018")
+            + card(BASE + "3", "Lee", "Ann", "EMAIL;TYPE=HOME:ann@example.com")
+            + card(BASE + "4", "Only", "Bob", "TEL;TYPE=WORK:+44 20 7946 0999");
+
+    private static final String PHONE =
+            // matched by number, written nationally
+            card(null, "Smith", "John", "TEL;TYPE=CELL:07700 900123")
+            // matched by UID, one number Google has written differently and one it lacks
+            + card(BASE + "2", "Jones", "Mary", "TEL;TYPE=HOME:+44 (0)20 7946-0018", "TEL;TYPE=CELL:07700 900999")
+            // matched by name
+            + card(null, "LEE", "ann", "EMAIL;TYPE=HOME:Ann@Example.com")
+            // only on the phone
+            + card(null, "New", "Zed", "TEL;TYPE=CELL:07700 900555")
+            // deleted in Google
+            + card(BASE + "5", "Gone", "Tom", "TEL;TYPE=CELL:07700 900777");
+
+    private static String card(String uid, String family, String given, String... properties) {
+        StringBuilder card = new StringBuilder("BEGIN:VCARD\r\nVERSION:3.0\r\n");
+        if (uid != null) {
+            card.append("UID:").append(uid).append("\r\n");
+        }
+        card.append("N:").append(family).append(';').append(given).append(";;;\r\n");
+        card.append("FN:").append(given).append(' ').append(family).append("\r\n");
+        for (String property : properties) {
+            card.append(property).append("\r\n");
+        }
+        return card.append("END:VCARD\r\n").toString();
+    }
+
+    @Test public void bringsBothSidesInLine() throws IOException {
+        Path dir = Files.createTempDirectory("vcf-diff");
+        Path google = dir.resolve("google.vcf");
+        Path phone = dir.resolve("phone.vcf");
+        Path script = dir.resolve("google-crud.script");
+        Path upload = dir.resolve("phone-upload.vcf");
+        try {
+            Files.write(google, GOOGLE.getBytes(StandardCharsets.UTF_8));
+            Files.write(phone, PHONE.getBytes(StandardCharsets.UTF_8));
+
+            VcfDiff.Summary summary = new VcfDiff("44").diff(google, phone, script, upload);
+
+            assertEquals(1, summary.getGoogleInserts());
+            assertEquals(1, summary.getGoogleUpdates());
+            assertEquals(1, summary.getPhoneInserts());
+            assertEquals(1, summary.getPhoneUpdates());
+            assertEquals(1, summary.getPhoneDeletes());
+            assertEquals(2, summary.getUnchanged());
+
+            List<String> lines = Files.readAllLines(script, StandardCharsets.UTF_8);
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0), lines.get(0).startsWith("--action=add \"--name=Zed New,given:Zed,family:New\""));
+            assertTrue(lines.get(0), lines.get(0).contains("\"--phone1=07700 900555,rel:"));
+            assertTrue(lines.get(1), lines.get(1).startsWith("--action=update --id=" + BASE + "2 "));
+            assertTrue(lines.get(1), lines.get(1).contains("\"--phone1=+44 20 7946 0018,rel:"));
+            assertTrue(lines.get(1), lines.get(1).contains("\"--phone2=07700 900999,rel:"));
+            assertFalse(lines.get(1), lines.get(1).contains("--phone3"));
+
+            List<String> uploaded = new ArrayList<>();
+            try (VcfSource cards = VcfSource.open(upload)) {
+                for (VCard card : cards) {
+                    uploaded.add(card.getFormattedName().getValue());
+                }
+            }
+            assertEquals(5, uploaded.size());
+            assertTrue(uploaded.contains("Zed New"));
+            assertTrue(uploaded.contains("Bob Only"));
+            assertFalse(uploaded.contains("Tom Gone"));
+        } finally {
+            for (Path file : new Path[]{google, phone, script, upload}) {
+                Files.deleteIfExists(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test public void matchesNationalAndInternationalNumbers() {
+        assertEquals("+442079460018", PhoneNumbers.normalize("+44 (0)20 7946-0018"));
+        assertEquals("+442079460018", PhoneNumbers.normalize("00442079460018"));
+        assertEquals("+442079460018", PhoneNumbers.toE164("020 7946 0018", "44"));
+        assertEquals("02079460018", PhoneNumbers.normalize("(0)20 7946 0018"));
+        assertNull(PhoneNumbers.normalize("12"));
+    }
+}
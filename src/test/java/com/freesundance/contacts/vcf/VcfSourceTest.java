@@ -0,0 +1,37 @@
+package com.freesundance.contacts.vcf;
+
+import ezvcard.VCard;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class VcfSourceTest {
+
+    private static final String CARDS =
+            "BEGIN:VCARD\r\nVERSION:3.0\r\nN:Smith;John;;;\r\nFN:John Smith\r\nTEL;TYPE=CELL:07700 900123\r\nEND:VCARD\r\n"
+            + "BEGIN:VCARD\r\nVERSION:3.0\r\nN:Jones;Mary;;;\r\nFN:Mary Jones\r\nEND:VCARD\r\n";
+
+    @Test public void readsCardsOneAtATime() throws Exception {
+        try (VcfSource source = new VcfSource("test",
+                new ByteArrayInputStream(CARDS.getBytes(StandardCharsets.UTF_8)))) {
+            VCard first = source.next();
+            assertEquals("Smith", first.getStructuredName().getFamily());
+            assertEquals(1, source.getCards());
+
+            VCard second = source.next();
+            assertEquals("Mary", second.getStructuredName().getGiven());
+            assertFalse(source.hasNext());
+            assertEquals(2, source.getCards());
+        }
+    }
+
+    @Test public void emptyStreamHasNoCards() throws Exception {
+        try (VcfSource source = new VcfSource("empty", new ByteArrayInputStream(new byte[0]))) {
+            assertFalse(source.hasNext());
+        }
+    }
+}